@@ -0,0 +1,42 @@
+package benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Entry point of benchmarks.jar. Takes the usual JMH command line (benchmark regex,
+ * -p, -prof, ...) and writes the results as JSON to
+ * target/jmh-results/&lt;version&gt;.json unless -rff is given, so runs of different
+ * versions can be compared for regressions. The version defaults to the current time,
+ * set it with -Dbenchmark.version=...
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        String version = System.getProperty("benchmark.version", String.valueOf(System.currentTimeMillis()));
+        File results = new File("target/jmh-results", version + ".json");
+        results.getParentFile().mkdirs();
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(commandLine);
+        if (!commandLine.getResult().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON).result(results.getPath());
+        }
+        Options options = builder.build();
+        if (commandLine.shouldList()) {
+            new Runner(options).list();
+            return;
+        }
+        new Runner(options).run();
+    }
+}
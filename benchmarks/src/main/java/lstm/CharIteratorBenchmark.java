@@ -0,0 +1,79 @@
+package lstm;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches per second of the CharIterator batch construction. "putScalar" is the
+ * original per element implementation, "bulk" is {@link CharBatchBuilder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CharIteratorBenchmark {
+
+    private static final int SEQ_LEN = 32;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"65", "256", "2048"})
+    public int vocabSize;
+
+    @Param({"putScalar", "bulk"})
+    public String builder;
+
+    private RandomAccessCharCorpus corpus;
+    private CharBatchBuilder batchBuilder;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        corpus = syntheticCorpus(1 << 20, vocabSize, 42);
+        batchBuilder = new CharBatchBuilder(vocabSize, SEQ_LEN, CharIterator.Encoding.ONE_HOT);
+        random = new Random(123456789);
+    }
+
+    static RandomAccessCharCorpus syntheticCorpus(int length, int vocabSize, long seed) {
+        char[] chars = new char[vocabSize];
+        for (int i = 0; i < vocabSize; i++) {
+            chars[i] = (char) (' ' + i);
+        }
+        Random r = new Random(seed);
+        char[] indices = new char[length];
+        for (int i = 0; i < length; i++) {
+            indices[i] = (char) r.nextInt(vocabSize);
+        }
+        return new ArrayCharCorpus(indices, length, new CharVocabulary(chars));
+    }
+
+    @Benchmark
+    public DataSet next() {
+        long pos = random.nextInt((int) corpus.length() - BATCH_SIZE - SEQ_LEN);
+        return "bulk".equals(builder) ? batchBuilder.build(corpus, pos, BATCH_SIZE) : putScalarBatch(pos);
+    }
+
+    private DataSet putScalarBatch(long pos) {
+        INDArray features = Nd4j.zeros(BATCH_SIZE, vocabSize, SEQ_LEN);
+        INDArray labels = Nd4j.zeros(BATCH_SIZE, vocabSize, SEQ_LEN);
+        INDArray featureMask = Nd4j.zeros(new int[]{BATCH_SIZE, SEQ_LEN});
+        INDArray labelMask = Nd4j.zeros(new int[]{BATCH_SIZE, SEQ_LEN});
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            for (int j = 0; j < SEQ_LEN; j++) {
+                features.putScalar(new int[]{i, corpus.indexAt(pos + i + j), j}, 1f);
+                labels.putScalar(new int[]{i, corpus.indexAt(pos + i + j + 1), j}, 1f);
+                if (j > SEQ_LEN / 2) {
+                    labelMask.putScalar(new int[]{i, j}, 1f);
+                }
+                featureMask.putScalar(new int[]{i, j}, 1f);
+            }
+        }
+        return new DataSet(features, labels, featureMask, labelMask);
+    }
+}
@@ -0,0 +1,78 @@
+package lstm;
+
+import common.MemoryProfile;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sampling in the generation hot path: sample alone, and the full step of
+ * GenerationSessions (TimeStepInput.set, rnnTimeStep, copy, sample) on the index input
+ * model. Run with the GC profiler; sample should not allocate at all
+ * (gc.alloc.rate.norm ~0 B/op), in step only the INDArray objects of rnnTimeStep should:
+ * <pre>
+ * java -jar target/benchmarks.jar CharSamplerBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharSamplerBenchmark {
+
+    @Param({"65", "256", "2048"})
+    public int vocabSize;
+
+    @Param({"plain", "topK", "topP"})
+    public String strategy;
+
+    private CharSampler sampler;
+    private float[] probs;
+    private Random random;
+    private MultiLayerNetwork model;
+    private TimeStepInput input;
+    private int current;
+
+    @Setup
+    public void setUp() {
+        switch (strategy) {
+            case "topK":
+                sampler = new CharSampler(vocabSize, 0.8, 10, 1.0);
+                break;
+            case "topP":
+                sampler = new CharSampler(vocabSize, 0.8, 0, 0.9);
+                break;
+            default:
+                sampler = new CharSampler(vocabSize);
+        }
+        random = new Random(42);
+        probs = new float[vocabSize];
+        float sum = 0;
+        for (int i = 0; i < vocabSize; i++) {
+            probs[i] = random.nextFloat();
+            sum += probs[i];
+        }
+        for (int i = 0; i < vocabSize; i++) {
+            probs[i] /= sum;
+        }
+        Nd4j.getRandom().setSeed(42);
+        model = MemoryProfile.GENERATION.apply(LSTMGenerator.createModel(vocabSize, CharIterator.Encoding.INDEX));
+        input = new TimeStepInput(vocabSize, true);
+    }
+
+    @Benchmark
+    public int sample() {
+        return sampler.sample(probs, 0, random);
+    }
+
+    @Benchmark
+    public int step() {
+        current = sampler.sample(sampler.copy(model.rnnTimeStep(input.set(current))), 0, random);
+        return current;
+    }
+}
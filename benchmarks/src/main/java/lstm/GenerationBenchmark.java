@@ -0,0 +1,59 @@
+package lstm;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation steps per second: one rnnTimeStep plus sampling for all streams. Chars
+ * per second are the score times the number of streams.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerationBenchmark {
+
+    private static final int VOCAB_SIZE = 65;
+
+    @Param({"1", "16", "64"})
+    public int streams;
+
+    private MultiLayerNetwork model;
+    private CharSampler sampler;
+    private INDArray input;
+    private Random random;
+    private int[] current;
+
+    @Setup
+    public void setUp() {
+        Nd4j.getRandom().setSeed(42);
+        model = LSTMGenerator.createModel(VOCAB_SIZE, CharIterator.Encoding.ONE_HOT);
+        sampler = new CharSampler(VOCAB_SIZE);
+        input = Nd4j.zeros(streams, VOCAB_SIZE);
+        random = new Random(42);
+        current = new int[streams];
+        for (int s = 0; s < streams; s++) {
+            input.putScalar(s, 0, 1);
+        }
+    }
+
+    @Benchmark
+    public int step() {
+        float[] probs = sampler.copy(model.rnnTimeStep(input));
+        int last = 0;
+        for (int s = 0; s < streams; s++) {
+            last = sampler.sample(probs, s, random);
+            input.putScalar(s, current[s], 0);
+            input.putScalar(s, last, 1);
+            current[s] = last;
+        }
+        return last;
+    }
+}
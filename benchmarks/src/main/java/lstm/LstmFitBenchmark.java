@@ -0,0 +1,42 @@
+package lstm;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One fit step of the character LSTM (batch 100, 32 chars, vocabulary of 65) for
+ * both input encodings; the batch is built once in the setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LstmFitBenchmark {
+
+    private static final int VOCAB_SIZE = 65;
+
+    @Param({"ONE_HOT", "INDEX"})
+    public CharIterator.Encoding encoding;
+
+    private MultiLayerNetwork model;
+    private DataSet dataSet;
+
+    @Setup
+    public void setUp() {
+        Nd4j.getRandom().setSeed(42);
+        model = LSTMGenerator.createModel(VOCAB_SIZE, encoding);
+        CharCorpus corpus = CharIteratorBenchmark.syntheticCorpus(1 << 16, VOCAB_SIZE, 42);
+        dataSet = new CharIterator(corpus, 32, 100, encoding).next();
+    }
+
+    @Benchmark
+    public void fit() {
+        model.fit(dataSet);
+    }
+}
@@ -0,0 +1,58 @@
+package lstm;
+
+import common.MappedModel;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold load of the generator LSTM (two 512 unit layers): ModelSerializer zip against
+ * the memory mapped format. The load only counts until the network can answer, so
+ * each call also runs one time step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ModelLoadBenchmark {
+
+    private static final int VOCAB_SIZE = 65;
+
+    private File zip;
+    private File mapped;
+
+    @Setup
+    public void setUp() throws IOException {
+        Nd4j.getRandom().setSeed(42);
+        MultiLayerNetwork model = LSTMGenerator.createModel(VOCAB_SIZE, CharIterator.Encoding.INDEX);
+        zip = File.createTempFile("lstm", ".model");
+        mapped = File.createTempFile("lstm", ".mapped");
+        model.save(zip);
+        MappedModel.save(model, mapped);
+    }
+
+    @TearDown
+    public void tearDown() {
+        zip.delete();
+        mapped.delete();
+    }
+
+    @Benchmark
+    public Object modelSerializer() throws IOException {
+        MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(zip, false);
+        return model.rnnTimeStep(Nd4j.zeros(1, 1, 1));
+    }
+
+    @Benchmark
+    public Object mapped() {
+        MultiLayerNetwork model = MappedModel.load(mapped);
+        return model.rnnTimeStep(Nd4j.zeros(1, 1, 1));
+    }
+}
@@ -0,0 +1,45 @@
+package mnist;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmark input: the first examples of the cached MNIST train set if the cache
+ * exists, otherwise random images and labels from a fixed seed, so the benchmarks
+ * also run on machines without the dataset.
+ */
+class MnistBenchmarkData {
+
+    private MnistBenchmarkData() {
+    }
+
+    static DataSet batch(int size) {
+        if (MnistCache.defaultFile(true).isFile()) {
+            try {
+                return new CachedMnistIterator(MnistCache.defaultFile(true), size, true, false, 42).next();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return synthetic(size, 42);
+    }
+
+    static DataSet synthetic(int size, long seed) {
+        Random r = new Random(seed);
+        float[] features = new float[size * 784];
+        float[] labels = new float[size * 10];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < 784; j++) {
+                features[i * 784 + j] = r.nextFloat();
+            }
+            labels[i * 10 + r.nextInt(10)] = 1f;
+        }
+        INDArray f = Nd4j.create(features, new int[]{size, 784}, 'c');
+        INDArray l = Nd4j.create(labels, new int[]{size, 10}, 'c');
+        return new DataSet(f, l);
+    }
+}
@@ -0,0 +1,51 @@
+package mnist;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One fit step (minibatch of 128) of each MNIST network configuration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MnistFitBenchmark {
+
+    @Param({"cnn", "feedforward", "autoencoder"})
+    public String network;
+
+    private MultiLayerNetwork model;
+    private DataSet dataSet;
+
+    @Setup
+    public void setUp() {
+        Nd4j.getRandom().setSeed(42);
+        switch (network) {
+            case "cnn":
+                model = MnistCNN.createNet();
+                break;
+            case "feedforward":
+                model = MnistFeedForward.createNet();
+                break;
+            default:
+                model = MnistFeedAutoEncoder.createNet();
+        }
+        model.init();
+        dataSet = MnistBenchmarkData.batch(128);
+        if ("autoencoder".equals(network)) {
+            dataSet = new DataSet(dataSet.getFeatures(), dataSet.getFeatures());
+        }
+    }
+
+    @Benchmark
+    public void fit() {
+        model.fit(dataSet);
+    }
+}
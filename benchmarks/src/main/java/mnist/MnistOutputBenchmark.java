@@ -0,0 +1,58 @@
+package mnist;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inference throughput in examples per second: 64 output() calls with one example
+ * each versus one output() call with all 64.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MnistOutputBenchmark {
+
+    private static final int EXAMPLES = 64;
+
+    @Param({"cnn", "feedforward"})
+    public String network;
+
+    private MultiLayerNetwork model;
+    private INDArray batch;
+    private INDArray[] singles;
+
+    @Setup
+    public void setUp() {
+        Nd4j.getRandom().setSeed(42);
+        model = "cnn".equals(network) ? MnistCNN.createNet() : MnistFeedForward.createNet();
+        model.init();
+        batch = MnistBenchmarkData.batch(EXAMPLES).getFeatures();
+        singles = new INDArray[EXAMPLES];
+        for (int i = 0; i < EXAMPLES; i++) {
+            singles[i] = batch.get(NDArrayIndex.interval(i, i + 1), NDArrayIndex.all()).dup();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXAMPLES)
+    public void single(Blackhole bh) {
+        for (INDArray example : singles) {
+            bh.consume(model.output(example, false));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXAMPLES)
+    public INDArray batched() {
+        return model.output(batch, false);
+    }
+}
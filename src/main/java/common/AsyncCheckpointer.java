@@ -0,0 +1,271 @@
+package common;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checkpoints a network every few seconds without stalling training. On the training
+ * thread the listener only dups the parameters and the updater state (two off-heap
+ * copies) and serializes the configuration, which carries the iteration and epoch
+ * count and with them the position in learning rate schedules. Compressing and writing
+ * happens on a background thread; at most one checkpoint is in flight, if the writer
+ * is still busy the next one is skipped.
+ * <p>
+ * Checkpoints are ModelSerializer compatible zips named &lt;name&gt;-&lt;iteration&gt;.zip,
+ * written to a temp file and renamed atomically, the newest keep files are kept. An
+ * extra entry holds the training state: iteration, epoch, the seed for the ND4J random
+ * generator on resume, derived from the configured seed and the iteration, and whatever the trainer supplies (e.g.
+ * the data position).
+ * <p>
+ * The listener belongs to the thread training the master model: with ParallelWrapper,
+ * {@link NeuralNetRunner} keeps it off the workers and calls it between fit calls, so it
+ * snapshots the averaged parameters and lastCheckpoint is never raced.
+ */
+public class AsyncCheckpointer extends BaseTrainingListener implements AutoCloseable {
+
+    private static final String STATE_ENTRY = "trainingState.properties";
+    private static Logger log = LoggerFactory.getLogger(AsyncCheckpointer.class);
+
+    private final File directory;
+    private final String name;
+    private final long intervalNanos;
+    private final int keep;
+    private final Supplier<Properties> trainingState;
+    private final ExecutorService writer;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private long lastCheckpoint = System.nanoTime();
+
+    public AsyncCheckpointer(File directory, String name, int intervalSeconds, int keep,
+                             Supplier<Properties> trainingState) {
+        this.directory = directory;
+        this.name = name;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.keep = keep;
+        this.trainingState = trainingState;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Cannot create checkpoint directory " + directory);
+        }
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Checkpoints every 30 seconds into java.io.tmpdir/checkpoints, keeping the last 3.
+     */
+    public static AsyncCheckpointer forTrainer(String name, Supplier<Properties> trainingState) {
+        return new AsyncCheckpointer(defaultDirectory(), name, 30, 3, trainingState);
+    }
+
+    public static File defaultDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "checkpoints");
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        long now = System.nanoTime();
+        if (now - lastCheckpoint < intervalNanos || !(model instanceof MultiLayerNetwork)) {
+            return;
+        }
+        lastCheckpoint = now;
+        if (!writing.compareAndSet(false, true)) {
+            log.warn("Previous checkpoint still being written, skipping iteration " + iteration);
+            return;
+        }
+        writer.submit(snapshot((MultiLayerNetwork) model, iteration, epoch));
+    }
+
+    private Runnable snapshot(MultiLayerNetwork model, int iteration, int epoch) {
+        // listeners run before the iteration count is incremented, so resume after this one
+        Properties state = trainingState == null ? new Properties() : trainingState.get();
+        state.setProperty("iteration", String.valueOf(iteration + 1));
+        state.setProperty("epoch", String.valueOf(epoch));
+        state.setProperty("randomSeed", String.valueOf(resumeSeed(model.getDefaultConfiguration().getSeed(), iteration + 1)));
+        String conf = model.getLayerWiseConfigurations().toJson();
+        INDArray params = model.params().dup();
+        Updater updater = model.getUpdater();
+        INDArray updaterState = updater == null || updater.getStateViewArray() == null
+                ? null : updater.getStateViewArray().dup();
+        return () -> {
+            try {
+                write(iteration + 1, conf, params, updaterState, state);
+            } catch (IOException | RuntimeException e) {
+                log.error("Checkpoint at iteration " + iteration + " failed", e);
+            } finally {
+                writing.set(false);
+            }
+        };
+    }
+
+    /**
+     * The seed the random generator is reset to when resuming at the iteration. The
+     * generator of a running training is never touched, a resumed run continues with a
+     * different but reproducible random sequence.
+     */
+    static long resumeSeed(long configuredSeed, int iteration) {
+        return configuredSeed * 0x9E3779B97F4A7C15L + iteration;
+    }
+
+    private void write(int iteration, String conf, INDArray params, INDArray updaterState, Properties state)
+            throws IOException {
+        long start = System.nanoTime();
+        File file = new File(directory, name + "-" + iteration + ".zip");
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            zip.putNextEntry(new ZipEntry("configuration.json"));
+            zip.write(conf.getBytes("UTF-8"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("coefficients.bin"));
+            DataOutputStream out = new DataOutputStream(zip);
+            Nd4j.write(params, out);
+            out.flush();
+            zip.closeEntry();
+            if (updaterState != null) {
+                zip.putNextEntry(new ZipEntry("updaterState.bin"));
+                Nd4j.write(updaterState, out);
+                out.flush();
+                zip.closeEntry();
+            }
+            zip.putNextEntry(new ZipEntry(STATE_ENTRY));
+            state.store(zip, null);
+            zip.closeEntry();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        File[] old = checkpoints(directory, name);
+        for (int i = keep; i < old.length; i++) {
+            Files.deleteIfExists(old[i].toPath());
+        }
+        log.info(String.format("Checkpoint %s written in %.1f s", file, (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * Checkpoints of the given name, newest first.
+     */
+    static File[] checkpoints(File directory, String name) {
+        Pattern pattern = Pattern.compile(Pattern.quote(name) + "-(\\d+)\\.zip");
+        File[] files = directory.listFiles((dir, file) -> pattern.matcher(file).matches());
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparingLong((File f) -> {
+            Matcher m = pattern.matcher(f.getName());
+            m.matches();
+            return Long.parseLong(m.group(1));
+        }).reversed());
+        return files;
+    }
+
+    /**
+     * The newest readable checkpoint, or null if there is none.
+     */
+    public static Checkpoint latest(File directory, String name) {
+        for (File file : checkpoints(directory, name)) {
+            try {
+                return Checkpoint.read(file);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Skipping unreadable checkpoint " + file, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the checkpoints once training finished and the final model is saved, so
+     * the next run starts fresh.
+     */
+    public void discard() {
+        close();
+        for (File file : checkpoints(directory, name)) {
+            if (!file.delete()) {
+                log.warn("Could not delete checkpoint " + file);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static class Checkpoint {
+        private final MultiLayerNetwork model;
+        private final Properties state;
+
+        private Checkpoint(MultiLayerNetwork model, Properties state) {
+            this.model = model;
+            this.state = state;
+        }
+
+        private static Checkpoint read(File file) throws IOException {
+            Properties state = new Properties();
+            try (ZipFile zip = new ZipFile(file)) {
+                ZipEntry entry = zip.getEntry(STATE_ENTRY);
+                if (entry == null) {
+                    throw new IOException("No training state in " + file);
+                }
+                try (InputStream in = zip.getInputStream(entry)) {
+                    state.load(in);
+                }
+            }
+            MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(file, true);
+            model.getLayerWiseConfigurations().setIterationCount(Integer.parseInt(state.getProperty("iteration")));
+            model.getLayerWiseConfigurations().setEpochCount(Integer.parseInt(state.getProperty("epoch")));
+            Nd4j.getRandom().setSeed(Long.parseLong(state.getProperty("randomSeed")));
+            log.info("Resuming from " + file + " at iteration " + state.getProperty("iteration"));
+            return new Checkpoint(model, state);
+        }
+
+        /**
+         * The restored network with updater state, iteration and epoch count.
+         */
+        public MultiLayerNetwork model() {
+            return model;
+        }
+
+        /**
+         * The training state, including the trainer supplied properties.
+         */
+        public Properties state() {
+            return state;
+        }
+
+        public int iteration() {
+            return Integer.parseInt(state.getProperty("iteration"));
+        }
+
+        public int epoch() {
+            return Integer.parseInt(state.getProperty("epoch"));
+        }
+    }
+}
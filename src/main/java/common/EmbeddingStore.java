@@ -0,0 +1,120 @@
+package common;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Embedding vectors of one dimension in a single direct (off-heap) float buffer, row
+ * after row; the id of a vector is its row. Nothing is kept per vector on the Java heap,
+ * so millions of small embeddings cost dimension * 4 bytes each and no GC work. The
+ * buffer doubles when full, which invalidates earlier {@link #asMatrix()} views. Being
+ * one buffer, it holds at most Integer.MAX_VALUE / 4 / dimension vectors.
+ */
+public class EmbeddingStore {
+
+    private static Logger log = LoggerFactory.getLogger(EmbeddingStore.class);
+
+    private final int dimension;
+    private ByteBuffer buffer;
+    private FloatBuffer floats;
+    private int size;
+
+    public EmbeddingStore(int dimension, int initialCapacity) {
+        this.dimension = dimension;
+        allocate(Math.max(initialCapacity, 1));
+    }
+
+    /**
+     * Streams the data through the network up to the given layer and stores that layer's
+     * activations, one vector per example. Use large batches, the cost per call is mostly
+     * fixed.
+     */
+    public static EmbeddingStore encode(MultiLayerNetwork model, int layer, DataSetIterator data) {
+        EmbeddingStore store = null;
+        long start = System.nanoTime();
+        data.reset();
+        while (data.hasNext()) {
+            INDArray features = data.next().getFeatures();
+            // index 0 is the input, so the activations of layer i are at i + 1
+            INDArray embeddings = model.feedForwardToLayer(layer, features, false).get(layer + 1);
+            if (store == null) {
+                store = new EmbeddingStore((int) embeddings.size(1), Math.max(1 << 16, (int) embeddings.size(0)));
+            }
+            store.add(embeddings);
+        }
+        if (store == null) {
+            throw new IllegalArgumentException("No data to encode");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info(String.format("Encoded %d examples into %d dimensions in %.1f s, %.0f examples/s",
+                store.size, store.dimension, seconds, store.size / seconds));
+        return store;
+    }
+
+    private void allocate(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity * dimension * 4).order(ByteOrder.nativeOrder());
+        if (buffer != null) {
+            buffer.position(0).limit(size * dimension * 4);
+            grown.put(buffer);
+        }
+        buffer = grown;
+        floats = buffer.asFloatBuffer();
+    }
+
+    /**
+     * Appends the rows of the array as vectors.
+     */
+    public void add(INDArray rows) {
+        if (rows.size(1) != dimension) {
+            throw new IllegalArgumentException("Expected " + dimension + " columns, got " + rows.size(1));
+        }
+        int count = (int) rows.size(0);
+        // one direct buffer is addressed with int byte offsets
+        int maxRows = Integer.MAX_VALUE / 4 / dimension;
+        if ((long) size + count > maxRows) {
+            throw new IllegalStateException("Store full: " + size + " + " + count + " vectors exceed the capacity of "
+                    + maxRows + " vectors of dimension " + dimension);
+        }
+        if ((long) (size + count) * dimension > floats.capacity()) {
+            allocate((int) Math.min(maxRows, Math.max(2L * floats.capacity() / dimension, size + count)));
+        }
+        float[] values = rows.castTo(DataType.FLOAT).dup('c').data().asFloat();
+        floats.position(size * dimension);
+        floats.put(values, 0, count * dimension);
+        size += count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public void get(int row, float[] vector) {
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = floats.get(row * dimension + i);
+        }
+    }
+
+    /**
+     * A [size, dimension] array on the store's memory, no copy.
+     */
+    public INDArray asMatrix() {
+        ByteBuffer rows = buffer.duplicate().order(ByteOrder.nativeOrder());
+        rows.position(0).limit(size * dimension * 4);
+        DataBuffer data = Nd4j.createBuffer(rows.slice().order(ByteOrder.nativeOrder()), DataType.FLOAT, size * dimension);
+        return Nd4j.create(data, new long[]{size, dimension});
+    }
+}
@@ -0,0 +1,75 @@
+package common;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * Brute force nearest neighbours: the exact answer, and the reference for the recall of
+ * approximate indexes. The distances of a batch of queries to a chunk of stored vectors
+ * are one matrix product (|x - q|^2 = |x|^2 - 2 x.q + |q|^2), so the scan runs in the
+ * vectorized BLAS gemm directly on the store's off-heap memory; only the top k selection
+ * runs in Java.
+ */
+public class ExactIndex implements VectorIndex {
+
+    private static final int CHUNK = 1 << 16;
+    private static final int QUERY_BLOCK = 256;
+
+    private final INDArray vectors;
+    private final INDArray norms;
+
+    public ExactIndex(EmbeddingStore store) {
+        vectors = store.asMatrix();
+        norms = vectors.mul(vectors).sum(1).reshape(1, vectors.size(0));
+    }
+
+    @Override
+    public int[] search(float[] query, int k) {
+        return searchBatch(Nd4j.create(query, new int[]{1, query.length}), k)[0];
+    }
+
+    /**
+     * The k nearest rows for every row of queries, nearest first.
+     */
+    public int[][] searchBatch(INDArray queries, int k) {
+        int count = (int) queries.size(0);
+        int[][] result = new int[count][];
+        // bounds the distance matrix to QUERY_BLOCK x CHUNK
+        for (int from = 0; from < count; from += QUERY_BLOCK) {
+            int to = Math.min(count, from + QUERY_BLOCK);
+            TopK[] best = scan(queries.get(NDArrayIndex.interval(from, to), NDArrayIndex.all()), k);
+            for (int q = from; q < to; q++) {
+                result[q] = best[q - from].drain();
+            }
+        }
+        return result;
+    }
+
+    private TopK[] scan(INDArray queries, int k) {
+        int count = (int) queries.size(0);
+        TopK[] best = new TopK[count];
+        for (int q = 0; q < count; q++) {
+            best[q] = new TopK(k);
+        }
+        long n = vectors.size(0);
+        for (long start = 0; start < n; start += CHUNK) {
+            long end = Math.min(n, start + CHUNK);
+            INDArray rows = vectors.get(NDArrayIndex.interval(start, end), NDArrayIndex.all());
+            // |q|^2 is the same for all rows of a query and left out, only the order matters
+            INDArray distances = queries.mmul(rows.transpose()).muli(-2)
+                    .addiRowVector(norms.get(NDArrayIndex.all(), NDArrayIndex.interval(start, end)));
+            float[] d = distances.dup('c').data().asFloat();
+            int width = (int) (end - start);
+            for (int q = 0; q < count; q++) {
+                TopK top = best[q];
+                for (int j = 0, offset = q * width; j < width; j++) {
+                    if (d[offset + j] < top.bound()) {
+                        top.offer((int) start + j, d[offset + j]);
+                    }
+                }
+            }
+        }
+        return best;
+    }
+}
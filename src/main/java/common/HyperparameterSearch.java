@@ -0,0 +1,369 @@
+package common;
+
+import org.deeplearning4j.arbiter.optimize.api.ParameterSpace;
+import org.deeplearning4j.nn.conf.CacheMode;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.memory.MemoryUseMode;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Hyperparameter search with successive halving. Candidates are drawn at random from
+ * Arbiter parameter spaces and all trained for minIterations; then only the best
+ * 1 / eta of them continue, for eta times as many iterations, and so on until one is
+ * left or maxIterations is reached. A candidate is ranked by an exponential moving
+ * average of its minibatch scores, which follows the trend of the score rather than
+ * the noise of the last batch; a score that goes NaN or infinite fails the candidate.
+ * <p>
+ * Several candidates train at once, as many as the cores and the memory budget allow;
+ * the memory of a candidate is estimated from the DL4J memory report of its
+ * configuration, and the ND4J threads are split between the concurrent candidates.
+ * Between rungs the models live on disk, not in memory.
+ * <p>
+ * Everything is persisted in the search directory: per candidate the uniform draws that
+ * reproduce its hyperparameters, its status, iterations and score, and its model with
+ * updater state, and the rung the search is in. Running the search again on the same
+ * directory resumes it at that rung: earlier rungs are not halved again, candidates that
+ * already reached the rung are not trained again. Every rung starts a fresh data
+ * iterator, so use shuffled or randomly sampled data.
+ */
+public class HyperparameterSearch {
+
+    public enum Status {
+        ACTIVE, STOPPED, FAILED
+    }
+
+    private static final double SCORE_SMOOTHING = 0.05;
+    private static Logger log = LoggerFactory.getLogger(HyperparameterSearch.class);
+
+    private final File directory;
+    private final Map<String, ParameterSpace<?>> space;
+    private final Function<Map<String, Object>, MultiLayerConfiguration> factory;
+    private final Callable<DataSetIterator> data;
+    private final InputType inputType;
+    private final int batchSize;
+
+    /**
+     * @param space     named leaf parameter spaces, one value each
+     * @param factory   the network configuration for a set of values
+     * @param data      a new training iterator, called once per candidate and rung
+     * @param inputType input of the network, for the memory estimate
+     * @param batchSize minibatch size of the data, for the memory estimate
+     */
+    public HyperparameterSearch(File directory, Map<String, ParameterSpace<?>> space,
+                                Function<Map<String, Object>, MultiLayerConfiguration> factory,
+                                Callable<DataSetIterator> data, InputType inputType, int batchSize) {
+        for (Map.Entry<String, ParameterSpace<?>> e : space.entrySet()) {
+            if (!e.getValue().isLeaf() || e.getValue().numParameters() != 1) {
+                throw new IllegalArgumentException("Not a single value parameter space: " + e.getKey());
+            }
+            e.getValue().setIndices(0);
+        }
+        this.directory = directory;
+        this.space = new LinkedHashMap<>(space);
+        this.factory = factory;
+        this.data = data;
+        this.inputType = inputType;
+        this.batchSize = batchSize;
+    }
+
+    public static class Candidate {
+        private final int id;
+        private final Map<String, Double> draws;
+        private final Map<String, Object> values = new LinkedHashMap<>();
+        private volatile Status status = Status.ACTIVE;
+        // the rung that stopped the candidate, -1 while it is not stopped
+        private volatile int stoppedAt = -1;
+        private volatile int iterations;
+        private volatile double score = Double.NaN;
+
+        private Candidate(int id, Map<String, Double> draws, Map<String, ParameterSpace<?>> space) {
+            this.id = id;
+            this.draws = draws;
+            for (Map.Entry<String, ParameterSpace<?>> e : space.entrySet()) {
+                values.put(e.getKey(), e.getValue().getValue(new double[]{draws.get(e.getKey())}));
+            }
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public Map<String, Object> values() {
+            return values;
+        }
+
+        public Status status() {
+            return status;
+        }
+
+        public int iterations() {
+            return iterations;
+        }
+
+        public double score() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%d %s: %s after %d iterations, score %.4f", id, values, status, iterations, score);
+        }
+    }
+
+    /**
+     * Runs or resumes the search and returns the best candidate.
+     *
+     * @param cores       cores the search may use
+     * @param memoryBytes memory the concurrently training candidates may use
+     */
+    public Candidate run(int candidateCount, int minIterations, int maxIterations, int eta,
+                         int cores, long memoryBytes, long seed) throws Exception {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        List<Candidate> candidates = loadOrDraw(candidateCount, seed);
+        int rung = loadRung();
+        int target = minIterations;
+        for (int r = 0; r < rung; r++) {
+            target = (int) Math.min(maxIterations, (long) target * eta);
+        }
+        for (; ; rung++, target = (int) Math.min(maxIterations, (long) target * eta)) {
+            // candidates this rung already stopped take part again, so an interrupted
+            // halving ends with the same survivors
+            List<Candidate> active = new ArrayList<>();
+            for (Candidate c : candidates) {
+                if (c.status == Status.ACTIVE || (c.status == Status.STOPPED && c.stoppedAt == rung)) {
+                    active.add(c);
+                }
+            }
+            if (active.isEmpty()) {
+                break;
+            }
+            trainAll(active, target, cores, memoryBytes);
+            active.removeIf(c -> c.status == Status.FAILED);
+            active.sort(Comparator.comparingDouble(c -> c.score));
+            log.info(String.format("Rung %d, %d iterations: best %s", rung, target, active.isEmpty() ? "none" : active.get(0)));
+            if (active.size() <= 1 || target >= maxIterations) {
+                break;
+            }
+            int keep = (active.size() + eta - 1) / eta;
+            for (Candidate c : active.subList(keep, active.size())) {
+                c.status = Status.STOPPED;
+                c.stoppedAt = rung;
+                persist(c);
+            }
+            saveRung(rung + 1);
+        }
+        candidates.sort(Comparator.comparing((Candidate c) -> c.status == Status.FAILED)
+                .thenComparing(c -> -c.iterations).thenComparingDouble(c -> c.score));
+        for (Candidate c : candidates) {
+            log.info(c.toString());
+        }
+        return candidates.get(0);
+    }
+
+    private List<Candidate> loadOrDraw(int count, long seed) throws IOException {
+        List<Candidate> candidates = new ArrayList<>();
+        Random random = new Random(seed);
+        for (int id = 0; id < count; id++) {
+            File file = stateFile(id);
+            if (file.isFile()) {
+                candidates.add(load(id, file));
+                continue;
+            }
+            Map<String, Double> draws = new LinkedHashMap<>();
+            for (String name : space.keySet()) {
+                draws.put(name, random.nextDouble());
+            }
+            Candidate c = new Candidate(id, draws, space);
+            persist(c);
+            candidates.add(c);
+        }
+        int resumed = 0;
+        for (Candidate c : candidates) {
+            resumed += c.iterations > 0 ? 1 : 0;
+        }
+        log.info(String.format("%d candidates in %s, %d resumed", count, directory, resumed));
+        return candidates;
+    }
+
+    private void trainAll(List<Candidate> active, int target, int cores, long memoryBytes) throws Exception {
+        List<Candidate> pending = new ArrayList<>();
+        long perCandidate = 1;
+        for (Candidate c : active) {
+            if (c.status == Status.ACTIVE && c.iterations < target) {
+                pending.add(c);
+                perCandidate = Math.max(perCandidate, estimateBytes(factory.apply(c.values)));
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        int workers = (int) Math.max(1, Math.min(Math.min(pending.size(), cores), memoryBytes / perCandidate));
+        int threads = Math.max(1, cores / workers);
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(threads);
+        log.info(String.format("Training %d candidates to %d iterations, %d at a time with %d threads each (%.0f MB estimated each)",
+                pending.size(), target, workers, threads, perCandidate / 1e6));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (Candidate c : pending) {
+                results.add(pool.submit(() -> {
+                    train(c, target);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long estimateBytes(MultiLayerConfiguration conf) {
+        try {
+            return conf.getMemoryReport(inputType).getTotalMemoryBytes(batchSize, MemoryUseMode.TRAINING,
+                    CacheMode.NONE, DataType.FLOAT);
+        } catch (RuntimeException e) {
+            // not every layer supports memory reports: parameters, gradients and two updater states
+            long params = 0;
+            for (NeuralNetConfiguration layer : conf.getConfs()) {
+                params += layer.getLayer().initializer().numParams(layer);
+            }
+            return 16 * params;
+        }
+    }
+
+    private void train(Candidate c, int target) throws Exception {
+        File modelFile = modelFile(c.id);
+        MultiLayerNetwork model;
+        if (modelFile.isFile()) {
+            model = ModelSerializer.restoreMultiLayerNetwork(modelFile, true);
+        } else {
+            model = new MultiLayerNetwork(factory.apply(c.values));
+            model.init();
+        }
+        DataSetIterator iterator = data.call();
+        double score = c.score;
+        while (model.getIterationCount() < target) {
+            if (!iterator.hasNext()) {
+                iterator.reset();
+            }
+            model.fit(iterator.next());
+            double last = model.score();
+            if (Double.isNaN(last) || Double.isInfinite(last)) {
+                c.status = Status.FAILED;
+                break;
+            }
+            score = Double.isNaN(score) ? last : score + SCORE_SMOOTHING * (last - score);
+        }
+        c.iterations = model.getIterationCount();
+        c.score = score;
+        if (c.status == Status.ACTIVE) {
+            File tmp = new File(modelFile.getPath() + ".tmp");
+            model.save(tmp, true);
+            Files.move(tmp.toPath(), modelFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        persist(c);
+        log.info(c.toString());
+    }
+
+    private File stateFile(int id) {
+        return new File(directory, "candidate-" + id + ".properties");
+    }
+
+    private File rungFile() {
+        return new File(directory, "search.properties");
+    }
+
+    /**
+     * The rung the search is in, 0 for a new search.
+     */
+    private int loadRung() throws IOException {
+        File file = rungFile();
+        if (!file.isFile()) {
+            return 0;
+        }
+        Properties p = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            p.load(in);
+        }
+        return Integer.parseInt(p.getProperty("rung"));
+    }
+
+    private void saveRung(int rung) {
+        Properties p = new Properties();
+        p.setProperty("rung", String.valueOf(rung));
+        store(p, rungFile());
+    }
+
+    private File modelFile(int id) {
+        return new File(directory, "candidate-" + id + ".zip");
+    }
+
+    private void persist(Candidate c) {
+        Properties p = new Properties();
+        for (Map.Entry<String, Double> e : c.draws.entrySet()) {
+            p.setProperty("draw." + e.getKey(), String.valueOf(e.getValue()));
+        }
+        p.setProperty("values", String.valueOf(c.values));
+        p.setProperty("status", c.status.name());
+        p.setProperty("iterations", String.valueOf(c.iterations));
+        p.setProperty("score", String.valueOf(c.score));
+        p.setProperty("stoppedAt", String.valueOf(c.stoppedAt));
+        store(p, stateFile(c.id));
+    }
+
+    private static void store(Properties p, File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                p.store(out, null);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Candidate load(int id, File file) throws IOException {
+        Properties p = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            p.load(in);
+        }
+        Map<String, Double> draws = new LinkedHashMap<>();
+        for (String name : space.keySet()) {
+            String draw = p.getProperty("draw." + name);
+            if (draw == null) {
+                throw new IOException(file + " was written for another search space, no draw for " + name);
+            }
+            draws.put(name, Double.parseDouble(draw));
+        }
+        Candidate c = new Candidate(id, draws, space);
+        c.status = Status.valueOf(p.getProperty("status"));
+        c.iterations = Integer.parseInt(p.getProperty("iterations"));
+        c.score = Double.parseDouble(p.getProperty("score"));
+        c.stoppedAt = Integer.parseInt(p.getProperty("stoppedAt", "-1"));
+        return c;
+    }
+}
@@ -0,0 +1,201 @@
+package common;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process inference for a trained network. Callers on any thread submit single
+ * examples (leading dimension 1); worker threads collect them into micro-batches of
+ * up to maxBatchSize examples, waiting at most maxDelayMicros after the first request
+ * of a batch, and run one output() call per batch. Requests with different shapes
+ * (e.g. sequences of different length) are never mixed in one batch.
+ * <p>
+ * Every worker uses its own replica of the network sharing the parameters of the
+ * loaded model.
+ */
+public class InferenceEngine implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(InferenceEngine.class);
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final List<Thread> workers = new ArrayList<>();
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final AtomicLongArray batchSizes;
+    private volatile boolean running = true;
+
+    private static class Request {
+        private final INDArray features;
+        private final long arrival = System.nanoTime();
+        private final CompletableFuture<INDArray> result = new CompletableFuture<>();
+
+        private Request(INDArray features) {
+            this.features = features;
+        }
+
+        private boolean batchesWith(Request other) {
+            return Arrays.equals(features.shape(), other.features.shape());
+        }
+    }
+
+    public InferenceEngine(MultiLayerNetwork model, int workerCount, int maxBatchSize, long maxDelayMicros) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.batchSizes = new AtomicLongArray(maxBatchSize + 1);
+        for (int i = 0; i < workerCount; i++) {
+            MultiLayerNetwork replica = NetworkReplicas.sharingParameters(model);
+            Thread worker = new Thread(() -> serve(replica), "inference-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public static InferenceEngine restore(File modelFile, int workerCount, int maxBatchSize, long maxDelayMicros)
+            throws IOException {
+        // the GC policy is process wide, setting it is up to the caller
+        MultiLayerNetwork model = MemoryProfile.INFERENCE.configure(MappedModel.restore(modelFile));
+        return new InferenceEngine(model, workerCount, maxBatchSize, maxDelayMicros);
+    }
+
+    /**
+     * Queues one example, shape [1, ...], and returns its network output, shape [1, ...].
+     */
+    public CompletableFuture<INDArray> submit(INDArray features) {
+        if (features.size(0) != 1) {
+            throw new IllegalArgumentException("Expected a single example, got shape " + Arrays.toString(features.shape()));
+        }
+        Request request = new Request(features);
+        if (!running) {
+            request.result.completeExceptionally(new IllegalStateException("Inference engine is closed"));
+            return request.result;
+        }
+        queue.add(request);
+        // close() may have drained the queue between the check and the add; then the
+        // request is still queued and nobody else will complete it
+        if (!running && queue.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("Inference engine is closed"));
+        }
+        return request.result;
+    }
+
+    public INDArray output(INDArray features) {
+        return submit(features).join();
+    }
+
+    private void serve(MultiLayerNetwork replica) {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        Request carry = null;
+        try {
+            while (running) {
+                Request first = carry != null ? carry : queue.poll(100, TimeUnit.MILLISECONDS);
+                carry = null;
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = first.arrival + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (!next.batchesWith(first)) {
+                        carry = next;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                run(replica, batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (carry != null) {
+            carry.result.completeExceptionally(new IllegalStateException("Inference engine is closed"));
+        }
+    }
+
+    private void run(MultiLayerNetwork replica, List<Request> batch) {
+        int n = batch.size();
+        try {
+            INDArray features;
+            if (n == 1) {
+                features = batch.get(0).features;
+            } else {
+                INDArray[] inputs = new INDArray[n];
+                for (int i = 0; i < n; i++) {
+                    inputs[i] = batch.get(i).features;
+                }
+                features = Nd4j.concat(0, inputs);
+            }
+            INDArray output = replica.output(features, false);
+            long now = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                Request request = batch.get(i);
+                request.result.complete(n == 1 ? output : output.get(NDArrayIndex.interval(i, i + 1)).dup());
+                latencyMicros.record((now - request.arrival) / 1000);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Inference failed for batch of " + n, e);
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+        batchSizes.incrementAndGet(n);
+    }
+
+    public LatencyHistogram latency() {
+        return latencyMicros;
+    }
+
+    /**
+     * Latency percentiles (microseconds, queueing included) and the distribution of batch sizes.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("latency [us] ").append(latencyMicros).append("\nbatch sizes:");
+        long batches = 0;
+        long examples = 0;
+        for (int size = 1; size <= maxBatchSize; size++) {
+            long count = batchSizes.get(size);
+            if (count > 0) {
+                sb.append(' ').append(size).append('x').append(count);
+                batches += count;
+                examples += size * count;
+            }
+        }
+        sb.append(String.format("\nbatches=%d mean batch size=%.1f", batches, batches == 0 ? 0 : (double) examples / batches));
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("Inference engine is closed"));
+        }
+    }
+}
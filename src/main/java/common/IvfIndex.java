@@ -0,0 +1,194 @@
+package common;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbours with an inverted file: k-means, trained on a sample,
+ * splits the vectors into lists around centroids; a query only scans the lists of its
+ * probes nearest centroids. More probes trade speed for recall.
+ * <p>
+ * The vectors are copied off-heap in list order, so a probed list is a sequential scan;
+ * for embeddings of a few dimensions that scan is cheaper than any graph traversal,
+ * which is why this is an IVF and not an HNSW index. The copy is split into direct
+ * buffers of whole rows up to 1 GB each, so it needs no heap and its offsets do not
+ * overflow an int; the number of vectors is still bounded by the {@link EmbeddingStore}.
+ */
+public class IvfIndex implements VectorIndex {
+
+    private static final int SAMPLE_PER_LIST = 64;
+    private static final int KMEANS_ITERATIONS = 10;
+    private static final int CHUNK = 1 << 16;
+    private static final int SEGMENT_FLOATS = 1 << 28;
+    private static Logger log = LoggerFactory.getLogger(IvfIndex.class);
+
+    private final int dimension;
+    private final int lists;
+    private final float[] centroids;
+    private final int[] offsets;
+    private final int[] ids;
+    // the vectors in list order, rowsPerSegment rows per buffer
+    private final FloatBuffer[] segments;
+    private final int rowsPerSegment;
+    private int probes;
+
+    public IvfIndex(EmbeddingStore store, int lists, int probes, long seed) {
+        long start = System.nanoTime();
+        this.dimension = store.dimension();
+        this.lists = lists;
+        this.probes = checkProbes(probes);
+        int n = store.size();
+        INDArray all = store.asMatrix();
+
+        Random random = new Random(seed);
+        int[] sampleRows = new int[Math.min(n, SAMPLE_PER_LIST * lists)];
+        for (int i = 0; i < sampleRows.length; i++) {
+            sampleRows[i] = n == sampleRows.length ? i : random.nextInt(n);
+        }
+        INDArray sample = all.getRows(sampleRows);
+        centroids = kMeans(sample.dup('c').data().asFloat(), sampleRows.length, random);
+
+        // assign every vector, then lay the lists out one after the other
+        int[] assignment = new int[n];
+        INDArray c = Nd4j.create(centroids, new int[]{lists, dimension}, 'c');
+        for (int from = 0; from < n; from += CHUNK) {
+            int to = Math.min(n, from + CHUNK);
+            System.arraycopy(nearest(all.get(NDArrayIndex.interval(from, to), NDArrayIndex.all()), c),
+                    0, assignment, from, to - from);
+        }
+        offsets = new int[lists + 1];
+        for (int list : assignment) {
+            offsets[list + 1]++;
+        }
+        for (int l = 0; l < lists; l++) {
+            offsets[l + 1] += offsets[l];
+        }
+        int[] fill = offsets.clone();
+        ids = new int[n];
+        rowsPerSegment = Math.max(1, SEGMENT_FLOATS / dimension);
+        segments = new FloatBuffer[(n + rowsPerSegment - 1) / rowsPerSegment];
+        for (int s = 0; s < segments.length; s++) {
+            int rows = Math.min(rowsPerSegment, n - s * rowsPerSegment);
+            segments[s] = ByteBuffer.allocateDirect(4 * rows * dimension).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        float[] vector = new float[dimension];
+        for (int row = 0; row < n; row++) {
+            int position = fill[assignment[row]]++;
+            ids[position] = row;
+            store.get(row, vector);
+            FloatBuffer segment = segments[position / rowsPerSegment];
+            segment.position((position % rowsPerSegment) * dimension);
+            segment.put(vector);
+        }
+        log.info(String.format("IVF index of %d vectors in %d lists built in %.1f s", n, lists,
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * Lloyd's k-means on the sample, starting from random sample vectors.
+     */
+    private float[] kMeans(float[] sample, int count, Random random) {
+        float[] means = new float[lists * dimension];
+        for (int l = 0; l < lists; l++) {
+            System.arraycopy(sample, random.nextInt(count) * dimension, means, l * dimension, dimension);
+        }
+        INDArray sampleArray = Nd4j.create(sample, new int[]{count, dimension}, 'c');
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            int[] assignment = nearest(sampleArray, Nd4j.create(means, new int[]{lists, dimension}, 'c'));
+            double[] sums = new double[lists * dimension];
+            int[] sizes = new int[lists];
+            for (int i = 0; i < count; i++) {
+                int l = assignment[i];
+                sizes[l]++;
+                for (int d = 0; d < dimension; d++) {
+                    sums[l * dimension + d] += sample[i * dimension + d];
+                }
+            }
+            for (int l = 0; l < lists; l++) {
+                if (sizes[l] == 0) {
+                    // empty cluster: restart it at a random sample vector
+                    System.arraycopy(sample, random.nextInt(count) * dimension, means, l * dimension, dimension);
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    means[l * dimension + d] = (float) (sums[l * dimension + d] / sizes[l]);
+                }
+            }
+        }
+        return means;
+    }
+
+    private static int[] nearest(INDArray rows, INDArray centroids) {
+        // nearest centroid c maximizes 2 x.c - |c|^2
+        INDArray norms = centroids.mul(centroids).sum(1).reshape(1, centroids.size(0));
+        INDArray scores = rows.mmul(centroids.transpose()).muli(2).subiRowVector(norms);
+        return Nd4j.argMax(scores, 1).toIntVector();
+    }
+
+    public void setProbes(int probes) {
+        this.probes = checkProbes(probes);
+    }
+
+    private static int checkProbes(int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("At least one probe needed, got " + probes);
+        }
+        return probes;
+    }
+
+    @Override
+    public int[] search(float[] query, int k) {
+        TopK nearestLists = new TopK(Math.min(probes, lists));
+        for (int l = 0; l < lists; l++) {
+            nearestLists.offer(l, distance(query, centroids, l * dimension));
+        }
+        TopK best = new TopK(k);
+        for (int l : nearestLists.drain()) {
+            for (int j = offsets[l]; j < offsets[l + 1]; j++) {
+                float distance = distance(query, segments[j / rowsPerSegment], (j % rowsPerSegment) * dimension);
+                if (distance < best.bound()) {
+                    best.offer(ids[j], distance);
+                }
+            }
+        }
+        return best.drain();
+    }
+
+    private float distance(float[] query, float[] data, int offset) {
+        float sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            float diff = data[offset + d] - query[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private float distance(float[] query, FloatBuffer data, int offset) {
+        float sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            float diff = data.get(offset + d) - query[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    public String report() {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int l = 0; l < lists; l++) {
+            int size = offsets[l + 1] - offsets[l];
+            min = Math.min(min, size);
+            max = Math.max(max, size);
+        }
+        return String.format("%d lists, %d to %d vectors, %.1f on average, %d probes",
+                lists, min, max, (double) ids.length / lists, probes);
+    }
+}
@@ -0,0 +1,129 @@
+package common;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Uncompressed model format for fast inference start up: a header, the configuration
+ * JSON and the flat float parameter vector in native byte order, page aligned. Loading
+ * maps the file copy-on-write and hands the mapped pages to the network as its
+ * parameter array, so nothing is unzipped, deserialized or copied; pages are read by
+ * the OS on first use and shared between processes mapping the same file.
+ * <p>
+ * Only parameters are stored, no updater state, so use it for inference, not to
+ * continue training.
+ * <p>
+ * Layout: magic, version, JSON length, parameter count, parameter offset (int, int,
+ * int, long, long), JSON, padding up to a multiple of 4096, parameters.
+ */
+public class MappedModel {
+
+    static final int MAGIC = 0x4D504D31; // "MPM1"
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 4096;
+    // keeps every mapping alive as long as the network using it
+    private static final Map<MultiLayerNetwork, ByteBuffer> MAPPINGS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private MappedModel() {
+    }
+
+    public static void save(MultiLayerNetwork model, File file) {
+        byte[] json = model.getLayerWiseConfigurations().toJson().getBytes(StandardCharsets.UTF_8);
+        INDArray params = model.params();
+        if (params.dataType() != DataType.FLOAT) {
+            params = params.castTo(DataType.FLOAT);
+        }
+        long count = params.length();
+        long offset = align(28 + json.length);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(28 + json.length).order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION).putInt(json.length).putLong(count).putLong(offset).put(json);
+            header.flip();
+            channel.write(header, 0);
+
+            ByteBuffer data = ByteBuffer.allocate(4 * (int) count).order(ByteOrder.nativeOrder());
+            data.asFloatBuffer().put(params.dup('c').data().asFloat(), 0, (int) count);
+            channel.write(data, offset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static MultiLayerNetwork load(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // PRIVATE: the network may write into its parameter array, that must not reach the file
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("Not a mapped model file: " + file);
+            }
+            int jsonLength = mapped.getInt(8);
+            long count = mapped.getLong(12);
+            long offset = mapped.getLong(20);
+            byte[] json = new byte[jsonLength];
+            mapped.position(28);
+            mapped.get(json);
+
+            mapped.position((int) offset);
+            ByteBuffer region = mapped.slice().order(ByteOrder.nativeOrder());
+            region.limit(4 * (int) count);
+            DataBuffer buffer = Nd4j.createBuffer(region, DataType.FLOAT, (int) count);
+            INDArray params = Nd4j.create(buffer, new long[]{1, count});
+
+            MultiLayerNetwork model = new MultiLayerNetwork(
+                    MultiLayerConfiguration.fromJson(new String(json, StandardCharsets.UTF_8)));
+            model.init(params, false);
+            MAPPINGS.put(model, mapped);
+            return model;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads either format, telling them apart by the magic number.
+     */
+    public static MultiLayerNetwork restore(File file) throws IOException {
+        if (isMapped(file)) {
+            return load(file);
+        }
+        return ModelSerializer.restoreMultiLayerNetwork(file, false);
+    }
+
+    public static boolean isMapped(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+            return channel.read(magic, 0) == 4 && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,99 @@
+package common;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How a network uses off-heap memory. With workspaces the activations, gradients and
+ * temporary arrays of an iteration live in memory allocated once and reused every
+ * iteration, instead of fresh allocations that are only freed when the GC finalizes
+ * their INDArrays. DL4J enables both workspaces by default, yet ND4J still calls
+ * System.gc() every 100 ms for the arrays outside of them; once nearly everything is in
+ * workspaces those calls only cost pauses, so the profiles mostly differ in how often
+ * they happen, and inference-only profiles drop the training workspace. Cache modes
+ * (HOST/DEVICE) only keep cuDNN buffers between forward and backward pass on GPUs; on
+ * the CPU backend they do not apply, so the profiles leave the network's cache mode alone.
+ * <p>
+ * The GC windows are starting points, not measured optima: no numbers were recorded
+ * for them yet. Measure them per workload with {@code MemoryProfileValidation}, e.g.
+ * "INFERENCE output" against "DEFAULTS output", before relying on them.
+ * <p>
+ * The GC policy is process wide: {@link #apply} changes it for all networks,
+ * {@link #configure} only sets the modes of one network.
+ * Chosen per trainer with -D&lt;Trainer&gt;.memoryProfile=... or -Dtrainer.memoryProfile=...
+ */
+public enum MemoryProfile {
+
+    /**
+     * The DL4J and ND4J defaults, for comparison: both workspaces, periodic GC every 100 ms.
+     */
+    DEFAULTS(WorkspaceMode.ENABLED, WorkspaceMode.ENABLED, 100),
+    /**
+     * fit(): workspaces for training and the inference calls in between, no periodic GC.
+     */
+    TRAINING(WorkspaceMode.ENABLED, WorkspaceMode.ENABLED, 0),
+    /**
+     * output() only: an inference workspace; what is returned leaves it, so an occasional GC.
+     */
+    INFERENCE(WorkspaceMode.NONE, WorkspaceMode.ENABLED, 10000),
+    /**
+     * rnnTimeStep() loops: tiny steps whose RNN state is detached from the workspace
+     * every step, so more garbage than INFERENCE and a shorter GC window.
+     */
+    GENERATION(WorkspaceMode.NONE, WorkspaceMode.ENABLED, 1000);
+
+    private static Logger log = LoggerFactory.getLogger(MemoryProfile.class);
+
+    private final WorkspaceMode trainingWorkspaceMode;
+    private final WorkspaceMode inferenceWorkspaceMode;
+    // 0 disables the periodic GC
+    private final int gcWindowMillis;
+
+    MemoryProfile(WorkspaceMode trainingWorkspaceMode, WorkspaceMode inferenceWorkspaceMode, int gcWindowMillis) {
+        this.trainingWorkspaceMode = trainingWorkspaceMode;
+        this.inferenceWorkspaceMode = inferenceWorkspaceMode;
+        this.gcWindowMillis = gcWindowMillis;
+    }
+
+    /**
+     * The profile selected for the trainer, or the given default.
+     */
+    public static MemoryProfile forTrainer(Class<?> trainer, MemoryProfile defaultProfile) {
+        return valueOf(System.getProperty(trainer.getSimpleName() + ".memoryProfile",
+                System.getProperty("trainer.memoryProfile", defaultProfile.name())));
+    }
+
+    /**
+     * Sets the workspace modes of the network and the process wide GC policy.
+     * The network may be initialized already, the modes are read on every call.
+     */
+    public MultiLayerNetwork apply(MultiLayerNetwork model) {
+        configure(model);
+        applyGcPolicy();
+        return model;
+    }
+
+    /**
+     * Sets only the workspace modes of the network.
+     */
+    public MultiLayerNetwork configure(MultiLayerNetwork model) {
+        MultiLayerConfiguration conf = model.getLayerWiseConfigurations();
+        conf.setTrainingWorkspaceMode(trainingWorkspaceMode);
+        conf.setInferenceWorkspaceMode(inferenceWorkspaceMode);
+        return model;
+    }
+
+    public void applyGcPolicy() {
+        Nd4j.getMemoryManager().togglePeriodicGc(gcWindowMillis > 0);
+        if (gcWindowMillis > 0) {
+            Nd4j.getMemoryManager().setAutoGcWindow(gcWindowMillis);
+        }
+        log.info(String.format("Memory profile %s: training workspace %s, inference workspace %s, periodic GC %s",
+                this, trainingWorkspaceMode, inferenceWorkspaceMode,
+                gcWindowMillis > 0 ? "every " + gcWindowMillis + " ms" : "off"));
+    }
+}
@@ -0,0 +1,238 @@
+package common;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
+import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
+import org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.gradient.DefaultGradient;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.primitives.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Mixed precision training: the model passed in stays the FP32 master copy with the
+ * updater state, a working copy of the network in half precision computes activations
+ * and gradients. Every step copies the master weights into the working copy, runs
+ * forward and backward pass there, and applies the gradient, cast back to FP32, with the
+ * master's updater. Activations and gradients take half the memory per example, so
+ * minibatches can be about twice as large.
+ * <p>
+ * The loss gradient is multiplied by a loss scale before the backward pass so small
+ * gradients do not underflow in half precision, and the FP32 gradient is divided by it
+ * again. The scale is dynamic: a step whose gradient overflows is skipped and halves the
+ * scale, every GROWTH_INTERVAL good steps it doubles.
+ * <p>
+ * Truncated BPTT is done here, segment by segment with one update each, like
+ * MultiLayerNetwork.fit does.
+ */
+public class MixedPrecisionTrainer {
+
+    private static final double INITIAL_SCALE = 1 << 15;
+    private static final int GROWTH_INTERVAL = 2000;
+    // class indices above 2048 are not exact in half precision
+    private static final long MAX_INDEX_CLASSES = 2048;
+    private static Logger log = LoggerFactory.getLogger(MixedPrecisionTrainer.class);
+
+    private final MultiLayerNetwork master;
+    private final MultiLayerNetwork work;
+    private final DataType dataType;
+    private final ScaledLoss loss;
+    private final Gradient gradient;
+    private int goodSteps;
+    private long skippedSteps;
+
+    public MixedPrecisionTrainer(MultiLayerNetwork master, DataType dataType) {
+        this.master = master;
+        this.dataType = dataType;
+        MultiLayerConfiguration conf = master.getLayerWiseConfigurations().clone();
+        conf.setDataType(dataType);
+        Layer first = conf.getConf(0).getLayer();
+        if ((first instanceof EmbeddingLayer && ((EmbeddingLayer) first).getNIn() > MAX_INDEX_CLASSES)
+                || (first instanceof EmbeddingSequenceLayer && ((EmbeddingSequenceLayer) first).getNIn() > MAX_INDEX_CLASSES)) {
+            throw new IllegalArgumentException("Too many classes for index input in " + dataType);
+        }
+        NeuralNetConfiguration outputConf = conf.getConf(conf.getConfs().size() - 1);
+        if (!(outputConf.getLayer() instanceof BaseOutputLayer)) {
+            throw new IllegalArgumentException("Mixed precision needs an output layer with a loss function");
+        }
+        // own copy of the output layer configuration, the master keeps its loss function
+        BaseOutputLayer output = (BaseOutputLayer) outputConf.getLayer().clone();
+        loss = new ScaledLoss(output.getLossFn(), INITIAL_SCALE);
+        output.setLossFn(loss);
+        outputConf.setLayer(output);
+        work = new MultiLayerNetwork(conf);
+        work.init(master.params().castTo(dataType), false);
+
+        master.initGradientsView();
+        gradient = new DefaultGradient(master.getFlattenedGradients());
+        for (int i = 0; i < master.getnLayers(); i++) {
+            org.deeplearning4j.nn.api.Layer layer = master.getLayer(i);
+            Map<String, INDArray> views = layer.conf().getLayer().initializer()
+                    .getGradientsFromFlattened(layer.conf(), layer.getGradientsViewArray());
+            for (Map.Entry<String, INDArray> e : views.entrySet()) {
+                gradient.setGradientFor(i + "_" + e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    public MultiLayerNetwork getMaster() {
+        return master;
+    }
+
+    public double getLossScale() {
+        return loss.scale;
+    }
+
+    public long getSkippedSteps() {
+        return skippedSteps;
+    }
+
+    public void fit(DataSetIterator data, int epochs) {
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            for (TrainingListener listener : master.getListeners()) {
+                listener.onEpochStart(master);
+            }
+            // like MultiLayerNetwork.fit: only an exhausted iterator is reset, a sought one continues
+            if (!data.hasNext()) {
+                data.reset();
+            }
+            while (data.hasNext()) {
+                fit(data.next());
+            }
+            for (TrainingListener listener : master.getListeners()) {
+                listener.onEpochEnd(master);
+            }
+            MultiLayerConfiguration conf = master.getLayerWiseConfigurations();
+            conf.setEpochCount(conf.getEpochCount() + 1);
+        }
+    }
+
+    public void fit(DataSet ds) {
+        MultiLayerConfiguration conf = master.getLayerWiseConfigurations();
+        INDArray features = ds.getFeatures();
+        long steps = features.rank() == 3 ? features.size(2) : 1;
+        if (conf.getBackpropType() != BackpropType.TruncatedBPTT || steps <= conf.getTbpttFwdLength()) {
+            step(features, ds.getLabels(), ds.getFeaturesMaskArray(), ds.getLabelsMaskArray());
+            work.rnnClearPreviousState();
+            return;
+        }
+        int length = conf.getTbpttFwdLength();
+        for (long start = 0; start < steps; start += length) {
+            step(segment(features, start, length, steps), segment(ds.getLabels(), start, length, steps),
+                    segment(ds.getFeaturesMaskArray(), start, length, steps),
+                    segment(ds.getLabelsMaskArray(), start, length, steps));
+            work.updateRnnStateWithTBPTTState();
+        }
+        work.rnnClearPreviousState();
+    }
+
+    private static INDArray segment(INDArray array, long start, int length, long steps) {
+        if (array == null) {
+            return null;
+        }
+        long end = Math.min(steps, start + length);
+        if (array.rank() == 3) {
+            return array.get(NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.interval(start, end));
+        }
+        return array.get(NDArrayIndex.all(), NDArrayIndex.interval(start, end));
+    }
+
+    private void step(INDArray features, INDArray labels, INDArray featuresMask, INDArray labelsMask) {
+        // assign converts into the working copy's own buffer, no half precision copy per step
+        work.params().assign(master.params());
+        work.setInput(features.castTo(dataType));
+        work.setLabels(labels.castTo(dataType));
+        work.setLayerMaskArrays(featuresMask == null ? null : featuresMask.castTo(dataType),
+                labelsMask == null ? null : labelsMask.castTo(dataType));
+        work.computeGradientAndScore();
+        work.clearLayerMaskArrays();
+
+        INDArray flat = master.getFlattenedGradients();
+        flat.assign(work.getFlattenedGradients().castTo(flat.dataType())).divi(loss.scale);
+        double sum = flat.sumNumber().doubleValue();
+        if (Double.isNaN(sum) || Double.isInfinite(sum)) {
+            // overflow: skip the update and retry with a smaller scale
+            loss.scale /= 2;
+            goodSteps = 0;
+            skippedSteps++;
+            log.debug(String.format("gradient overflow, loss scale lowered to %.0f", loss.scale));
+            return;
+        }
+        if (++goodSteps == GROWTH_INTERVAL) {
+            loss.scale *= 2;
+            goodSteps = 0;
+        }
+
+        MultiLayerConfiguration conf = master.getLayerWiseConfigurations();
+        int iteration = conf.getIterationCount();
+        int epoch = conf.getEpochCount();
+        Updater updater = master.getUpdater();
+        updater.update(master, gradient, iteration, epoch, (int) features.size(0), LayerWorkspaceMgr.noWorkspaces());
+        master.params().subi(flat);
+        master.setScore(work.score());
+        conf.setIterationCount(iteration + 1);
+        // listeners look at the master, e.g. for its batchSize(), as after MultiLayerNetwork.fit
+        master.setInput(features);
+        master.setLabels(labels);
+        for (TrainingListener listener : master.getListeners()) {
+            listener.iterationDone(master, iteration, epoch);
+        }
+    }
+
+    /**
+     * Loss function of the working copy: the score as is, the gradient times the loss scale.
+     */
+    private static class ScaledLoss implements ILossFunction {
+        private final ILossFunction loss;
+        private double scale;
+
+        ScaledLoss(ILossFunction loss, double scale) {
+            this.loss = loss;
+            this.scale = scale;
+        }
+
+        @Override
+        public double computeScore(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask, boolean average) {
+            return loss.computeScore(labels, preOutput, activationFn, mask, average);
+        }
+
+        @Override
+        public INDArray computeScoreArray(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask) {
+            return loss.computeScoreArray(labels, preOutput, activationFn, mask);
+        }
+
+        @Override
+        public INDArray computeGradient(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask) {
+            return loss.computeGradient(labels, preOutput, activationFn, mask).muli(scale);
+        }
+
+        @Override
+        public Pair<Double, INDArray> computeGradientAndScore(INDArray labels, INDArray preOutput, IActivation activationFn,
+                                                             INDArray mask, boolean average) {
+            return new Pair<>(computeScore(labels, preOutput, activationFn, mask, average),
+                    computeGradient(labels, preOutput, activationFn, mask));
+        }
+
+        @Override
+        public String name() {
+            return "Scaled(" + loss.name() + ")";
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package common;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * Copies of a network for concurrent inference. A replica has its own layers (so its
+ * own activations and RNN state) but uses the parameter array of the original network
+ * as is, so replicas cost no extra parameter memory. Parameters must not be changed
+ * while replicas are in use.
+ */
+public class NetworkReplicas {
+
+    private NetworkReplicas() {
+    }
+
+    public static MultiLayerNetwork sharingParameters(MultiLayerNetwork model) {
+        MultiLayerNetwork replica = new MultiLayerNetwork(model.getLayerWiseConfigurations().clone());
+        replica.init(model.params(), false);
+        return replica;
+    }
+}
@@ -0,0 +1,386 @@
+package common;
+
+import org.deeplearning4j.api.storage.listener.RoutingIterationListener;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Shared training loop of the example trainers. SINGLE fits on the calling thread,
+ * AVERAGING and SHARED_GRADIENTS train data parallel on several workers through
+ * ParallelWrapper (parameter averaging every averagingFrequency iterations, or
+ * threshold encoded gradient sharing).
+ * <p>
+ * The mode is chosen per trainer with system properties, e.g.
+ * -DMnistCNN.mode=AVERAGING -DMnistCNN.workers=4 -DMnistCNN.averagingFrequency=5;
+ * properties prefixed with "trainer." apply to all trainers. With -Dtrainer.compare=true
+ * the trainers first measure the speedup of the selected mode over a single worker.
+ * <p>
+ * -DMnistCNN.precision=MIXED trains with half precision activations and gradients on an
+ * FP32 master copy of the weights (see {@link MixedPrecisionTrainer}), on a single
+ * worker only; {@link #batchSize(int)} then doubles the trainer's minibatch size.
+ * <p>
+ * In the parallel modes only routing listeners (cloned per worker by ParallelWrapper) and
+ * the {@link TrainingTelemetry} (per thread state) run on the workers. All other listeners,
+ * e.g. the {@link AsyncCheckpointer}, run on the calling thread against the master model
+ * after every epoch or every SEGMENT_BATCHES minibatches, once the averaged parameters are back.
+ */
+public class NeuralNetRunner {
+
+    public enum Mode {
+        SINGLE, AVERAGING, SHARED_GRADIENTS
+    }
+
+    public enum Precision {
+        FP32, MIXED
+    }
+
+    private static Logger log = LoggerFactory.getLogger(NeuralNetRunner.class);
+    private static final int SEGMENT_BATCHES = 1000;
+
+    private final Mode mode;
+    private final int workers;
+    private final int averagingFrequency;
+    private final boolean compare;
+    private final Precision precision;
+    private TrainingTelemetry telemetry;
+    private MixedPrecisionTrainer mixed;
+
+    public NeuralNetRunner(Mode mode, int workers, int averagingFrequency) {
+        this(mode, workers, averagingFrequency, false, Precision.FP32);
+    }
+
+    private NeuralNetRunner(Mode mode, int workers, int averagingFrequency, boolean compare, Precision precision) {
+        if (precision == Precision.MIXED && mode != Mode.SINGLE) {
+            throw new IllegalArgumentException("Mixed precision trains on a single worker, not " + mode);
+        }
+        this.mode = mode;
+        this.workers = mode == Mode.SINGLE ? 1 : workers;
+        this.averagingFrequency = averagingFrequency;
+        this.compare = compare;
+        this.precision = precision;
+    }
+
+    public static NeuralNetRunner forTrainer(Class<?> trainer) {
+        String name = trainer.getSimpleName();
+        Mode mode = Mode.valueOf(property(name, "mode", Mode.SINGLE.name()));
+        int workers = Integer.parseInt(property(name, "workers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int averagingFrequency = Integer.parseInt(property(name, "averagingFrequency", "5"));
+        boolean compare = Boolean.parseBoolean(property(name, "compare", "false"));
+        Precision precision = Precision.valueOf(property(name, "precision", Precision.FP32.name()));
+        return new NeuralNetRunner(mode, workers, averagingFrequency, compare, precision);
+    }
+
+    private static String property(String trainer, String key, String defaultValue) {
+        return System.getProperty(trainer + "." + key, System.getProperty("trainer." + key, defaultValue));
+    }
+
+    public boolean isParallel() {
+        return mode != Mode.SINGLE;
+    }
+
+    public boolean isCompare() {
+        return compare;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * The minibatch size to train with, given the one the trainer uses in FP32.
+     */
+    public int batchSize(int fp32BatchSize) {
+        return precision == Precision.MIXED ? 2 * fp32BatchSize : fp32BatchSize;
+    }
+
+    /**
+     * Trains on one minibatch on the calling thread, for trainers with their own loop.
+     */
+    public void fit(MultiLayerNetwork model, DataSet batch) {
+        if (precision == Precision.MIXED) {
+            mixedTrainer(model).fit(batch);
+        } else {
+            model.fit(batch);
+        }
+    }
+
+    private MixedPrecisionTrainer mixedTrainer(MultiLayerNetwork model) {
+        if (mixed == null || mixed.getMaster() != model) {
+            mixed = new MixedPrecisionTrainer(model, DataType.HALF);
+        }
+        return mixed;
+    }
+
+    /**
+     * Reports the time spent waiting for minibatches to the telemetry. The telemetry
+     * itself has to be registered as listener of the trained model.
+     */
+    public NeuralNetRunner withTelemetry(TrainingTelemetry telemetry) {
+        this.telemetry = telemetry;
+        return this;
+    }
+
+    /**
+     * Trains for the given number of passes over the data.
+     */
+    public Throughput fit(MultiLayerNetwork model, DataSetIterator data, int epochs) {
+        MeteredIterator metered = new MeteredIterator(data, -1, telemetry);
+        long start = System.nanoTime();
+        if (precision == Precision.MIXED) {
+            mixedTrainer(model).fit(metered, epochs);
+        } else if (mode == Mode.SINGLE) {
+            model.fit(metered, epochs);
+        } else {
+            ParallelWrapper wrapper = createWrapper(model);
+            try {
+                for (int epoch = 0; epoch < epochs; epoch++) {
+                    if (!metered.hasNext()) {
+                        metered.reset();
+                    }
+                    int batches = metered.batches;
+                    int iteration = model.getIterationCount();
+                    wrapper.fit(metered);
+                    masterIterationDone(model, iteration, metered.batches - batches);
+                }
+            } finally {
+                wrapper.shutdown();
+            }
+        }
+        return report(metered.examples, System.nanoTime() - start);
+    }
+
+    /**
+     * Trains for the given number of minibatches, starting over whenever the data runs out.
+     */
+    public Throughput fitIterations(MultiLayerNetwork model, DataSetIterator data, int iterations) {
+        // a resumed budget can be used up already; a negative limit would mean no limit
+        int limit = Math.max(0, iterations);
+        long start = System.nanoTime();
+        if (mode == Mode.SINGLE) {
+            MeteredIterator metered = new MeteredIterator(data, limit, telemetry);
+            while (metered.hasNext()) {
+                fit(model, metered.next());
+            }
+            return report(metered.examples, System.nanoTime() - start);
+        }
+        long examples = 0;
+        ParallelWrapper wrapper = createWrapper(model);
+        try {
+            for (int done = 0; done < limit; ) {
+                MeteredIterator segment = new MeteredIterator(data, Math.min(SEGMENT_BATCHES, limit - done), telemetry);
+                int iteration = model.getIterationCount();
+                wrapper.fit(segment);
+                done += segment.batches;
+                examples += segment.examples;
+                masterIterationDone(model, iteration, segment.batches);
+                if (segment.batches == 0) {
+                    break;
+                }
+            }
+        } finally {
+            wrapper.shutdown();
+        }
+        return report(examples, System.nanoTime() - start);
+    }
+
+    /**
+     * Trains fresh models for the same number of minibatches with a single worker and with
+     * this runner's mode and logs both throughputs and the speedup.
+     */
+    public double compareWithSingleWorker(Callable<MultiLayerNetwork> modelFactory, Callable<DataSetIterator> data,
+                                          int iterations) throws Exception {
+        NeuralNetRunner single = new NeuralNetRunner(Mode.SINGLE, 1, averagingFrequency, false, precision);
+        Throughput baseline = single.fitIterations(modelFactory.call(), data.call(), iterations);
+        Throughput parallel = fitIterations(modelFactory.call(), data.call(), iterations);
+        double speedup = parallel.samplesPerSecond() / baseline.samplesPerSecond();
+        log.info(String.format("%s with %d workers: %.1f samples/s, single worker: %.1f samples/s, speedup %.2fx",
+                mode, workers, parallel.samplesPerSecond(), baseline.samplesPerSecond(), speedup));
+        return speedup;
+    }
+
+    private ParallelWrapper createWrapper(MultiLayerNetwork model) {
+        ParallelWrapper wrapper = new ParallelWrapper.Builder<>(model)
+                .workers(workers)
+                .prefetchBuffer(4 * workers)
+                .averagingFrequency(averagingFrequency)
+                .reportScoreAfterAveraging(true)
+                .trainingMode(mode == Mode.SHARED_GRADIENTS
+                        ? ParallelWrapper.TrainingMode.SHARED_GRADIENTS : ParallelWrapper.TrainingMode.AVERAGING)
+                .build();
+        List<TrainingListener> workerListeners = new ArrayList<>();
+        for (TrainingListener listener : model.getListeners()) {
+            if (runsOnWorkers(listener)) {
+                workerListeners.add(listener);
+            }
+        }
+        if (!workerListeners.isEmpty()) {
+            wrapper.setListeners(workerListeners);
+        }
+        return wrapper;
+    }
+
+    private static boolean runsOnWorkers(TrainingListener listener) {
+        return listener instanceof RoutingIterationListener || listener instanceof TrainingTelemetry;
+    }
+
+    /**
+     * Runs the listeners that stay on the master after the workers trained the given number
+     * of minibatches. Each replica took about batches / workers steps; the master's iteration
+     * count is advanced by that if ParallelWrapper did not, so checkpoints carry it.
+     */
+    private void masterIterationDone(MultiLayerNetwork model, int iterationBefore, int batches) {
+        if (batches == 0) {
+            return;
+        }
+        MultiLayerConfiguration conf = model.getLayerWiseConfigurations();
+        int iteration = Math.max(conf.getIterationCount(), iterationBefore + Math.max(1, batches / workers));
+        conf.setIterationCount(iteration);
+        for (TrainingListener listener : model.getListeners()) {
+            if (!runsOnWorkers(listener)) {
+                // listeners are called before the count is incremented
+                listener.iterationDone(model, iteration - 1, conf.getEpochCount());
+            }
+        }
+    }
+
+    private Throughput report(long examples, long nanos) {
+        Throughput throughput = new Throughput(examples, nanos / 1e9);
+        log.info(String.format("%s %s (%d workers): %d samples in %.1f s, %.1f samples/s",
+                mode, precision, workers, examples, throughput.seconds, throughput.samplesPerSecond()));
+        if (mixed != null) {
+            log.info(String.format("loss scale %.0f, %d steps skipped on gradient overflow",
+                    mixed.getLossScale(), mixed.getSkippedSteps()));
+        }
+        return throughput;
+    }
+
+    public static class Throughput {
+        private final long samples;
+        private final double seconds;
+
+        Throughput(long samples, double seconds) {
+            this.samples = samples;
+            this.seconds = seconds;
+        }
+
+        public long samples() {
+            return samples;
+        }
+
+        public double samplesPerSecond() {
+            return seconds == 0 ? 0 : samples / seconds;
+        }
+    }
+
+    /**
+     * Counts the examples handed out and optionally stops after a number of minibatches,
+     * resetting the underlying iterator whenever it runs out. The time spent in next()
+     * is reported to the telemetry as data wait.
+     */
+    private static class MeteredIterator implements DataSetIterator {
+        private final DataSetIterator base;
+        private final int limit;
+        private final TrainingTelemetry telemetry;
+        private int batches;
+        private long examples;
+
+        MeteredIterator(DataSetIterator base, int limit, TrainingTelemetry telemetry) {
+            this.base = base;
+            this.limit = limit;
+            this.telemetry = telemetry;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (limit < 0) {
+                return base.hasNext();
+            }
+            return batches < limit;
+        }
+
+        @Override
+        public DataSet next(int num) {
+            long start = System.nanoTime();
+            if (limit >= 0 && !base.hasNext()) {
+                base.reset();
+            }
+            return count(base.next(num), start);
+        }
+
+        @Override
+        public DataSet next() {
+            long start = System.nanoTime();
+            if (limit >= 0 && !base.hasNext()) {
+                base.reset();
+            }
+            return count(base.next(), start);
+        }
+
+        private DataSet count(DataSet dataSet, long start) {
+            if (telemetry != null) {
+                telemetry.recordDataWait(System.nanoTime() - start);
+            }
+            batches++;
+            examples += dataSet.numExamples();
+            return dataSet;
+        }
+
+        @Override
+        public void reset() {
+            base.reset();
+            batches = 0;
+        }
+
+        @Override
+        public int inputColumns() {
+            return base.inputColumns();
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return base.totalOutcomes();
+        }
+
+        @Override
+        public boolean resetSupported() {
+            return base.resetSupported();
+        }
+
+        @Override
+        public boolean asyncSupported() {
+            return base.asyncSupported();
+        }
+
+        @Override
+        public int batch() {
+            return base.batch();
+        }
+
+        @Override
+        public void setPreProcessor(DataSetPreProcessor preProcessor) {
+            base.setPreProcessor(preProcessor);
+        }
+
+        @Override
+        public DataSetPreProcessor getPreProcessor() {
+            return base.getPreProcessor();
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return base.getLabels();
+        }
+    }
+}
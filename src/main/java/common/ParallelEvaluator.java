@@ -0,0 +1,119 @@
+package common;
+
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates a classifier on several threads. The calling thread reads the batches
+ * and queues them, each worker evaluates the batches it takes on its own replica of
+ * the network (sharing the parameters, see {@link NetworkReplicas}) into a per batch
+ * Evaluation, which is merged into the total. Every partialEvery batches a copy of
+ * the total so far is handed to the partial result callback, so long evaluations can
+ * report early.
+ */
+public class ParallelEvaluator implements AutoCloseable {
+
+    private static final DataSet END = new DataSet();
+    private static Logger log = LoggerFactory.getLogger(ParallelEvaluator.class);
+
+    private final List<MultiLayerNetwork> replicas = new ArrayList<>();
+    private final ExecutorService workers;
+
+    public ParallelEvaluator(MultiLayerNetwork model, int workerCount) {
+        for (int i = 0; i < workerCount; i++) {
+            replicas.add(NetworkReplicas.sharingParameters(model));
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "evaluation-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Evaluation evaluate(DataSetIterator data) {
+        return evaluate(data, Integer.MAX_VALUE, e -> {
+        });
+    }
+
+    public Evaluation evaluate(DataSetIterator data, int partialEvery, Consumer<Evaluation> partial) {
+        long start = System.nanoTime();
+        BlockingQueue<DataSet> queue = new ArrayBlockingQueue<>(2 * replicas.size());
+        Evaluation total = new Evaluation();
+        AtomicInteger batches = new AtomicInteger();
+        List<Future<Long>> results = new ArrayList<>();
+        for (MultiLayerNetwork replica : replicas) {
+            results.add(workers.submit(() -> {
+                long examples = 0;
+                DataSet ds;
+                while ((ds = queue.take()) != END) {
+                    Evaluation batch = new Evaluation();
+                    batch.eval(ds.getLabels(), replica.output(ds.getFeatures(), false), ds.getLabelsMaskArray());
+                    examples += ds.numExamples();
+                    Evaluation snapshot = null;
+                    synchronized (total) {
+                        total.merge(batch);
+                        if (batches.incrementAndGet() % partialEvery == 0) {
+                            snapshot = new Evaluation();
+                            snapshot.merge(total);
+                        }
+                    }
+                    if (snapshot != null) {
+                        partial.accept(snapshot);
+                    }
+                }
+                return examples;
+            }));
+        }
+
+        long examples = 0;
+        try {
+            data.reset();
+            while (data.hasNext()) {
+                put(queue, data.next(), results);
+            }
+            for (int i = 0; i < replicas.size(); i++) {
+                put(queue, END, results);
+            }
+            for (Future<Long> result : results) {
+                examples += result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info(String.format("Evaluated %d examples on %d workers in %.2f s, %.0f examples/s",
+                examples, replicas.size(), seconds, examples / seconds));
+        return total;
+    }
+
+    // a failed worker would leave the queue full forever, so check the workers while waiting
+    private static void put(BlockingQueue<DataSet> queue, DataSet ds, List<Future<Long>> results)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(ds, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Long> result : results) {
+                if (result.isDone()) {
+                    result.get();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,265 @@
+package common;
+
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Post-training int8 quantization of the weight matrices of a network (dense, conv,
+ * embedding and output "W", LSTM recurrent "RW"), one symmetric scale per parameter
+ * array; biases stay float. The scales are calibrated on a few training batches: for
+ * every weight array, layer by layer, the clipping range that changes the network
+ * output on the batches the least is kept, so rare outlier weights do not cost the
+ * resolution of all others.
+ * <p>
+ * DL4J has no int8 kernels, so the int8 weights are what is stored and shipped (about
+ * a quarter of the float model) and are dequantized when loading; the computation runs
+ * in the requested data type, FLOAT or HALF. The drift report compares the outputs and
+ * the Evaluation of the quantized network with the FP32 one.
+ */
+public class QuantizedModel {
+
+    private static final int MAGIC = 0x514E5431; // "QNT1"
+    private static final int VERSION = 1;
+    private static final double[] CLIP_RATIOS = {1.0, 0.9, 0.8, 0.7, 0.6, 0.5};
+    private static Logger log = LoggerFactory.getLogger(QuantizedModel.class);
+
+    private final MultiLayerConfiguration conf;
+    private final Map<String, INDArray> floats;
+    private final Map<String, byte[]> weights;
+    private final Map<String, Float> scales;
+
+    private QuantizedModel(MultiLayerConfiguration conf, Map<String, INDArray> floats,
+                           Map<String, byte[]> weights, Map<String, Float> scales) {
+        this.conf = conf;
+        this.floats = floats;
+        this.weights = weights;
+        this.scales = scales;
+    }
+
+    private static boolean isWeight(String key) {
+        return key.endsWith("_W") || key.endsWith("_RW");
+    }
+
+    /**
+     * Quantizes the weights of the model, calibrating the scales on the given batches.
+     */
+    public static QuantizedModel calibrate(MultiLayerNetwork model, List<INDArray> calibrationInputs) {
+        List<INDArray> reference = new ArrayList<>();
+        for (INDArray input : calibrationInputs) {
+            reference.add(model.output(input).dup());
+        }
+        MultiLayerNetwork work = model.clone();
+        Map<String, INDArray> floats = new LinkedHashMap<>();
+        Map<String, byte[]> weights = new LinkedHashMap<>();
+        Map<String, Float> scales = new LinkedHashMap<>();
+        // parameter table is in layer order, so every choice sees the earlier layers quantized
+        for (Map.Entry<String, INDArray> e : model.paramTable().entrySet()) {
+            String key = e.getKey();
+            INDArray original = e.getValue().dup('c');
+            if (!isWeight(key)) {
+                floats.put(key, original);
+                continue;
+            }
+            double maxAbs = original.amaxNumber().doubleValue();
+            float bestScale = 1;
+            double bestError = Double.MAX_VALUE;
+            for (double ratio : CLIP_RATIOS) {
+                float scale = (float) (Math.max(maxAbs * ratio, 1e-12) / 127);
+                work.setParam(key, dequantize(quantize(original, scale), scale, original.shape()));
+                double error = outputError(work, calibrationInputs, reference);
+                if (error < bestError) {
+                    bestError = error;
+                    bestScale = scale;
+                }
+            }
+            byte[] q = quantize(original, bestScale);
+            work.setParam(key, dequantize(q, bestScale, original.shape()));
+            weights.put(key, q);
+            scales.put(key, bestScale);
+            log.info(String.format("%s: scale %.3g (clipped at %.0f%% of max), output mse %.3g",
+                    key, bestScale, 100 * bestScale * 127 / Math.max(maxAbs, 1e-12), bestError));
+        }
+        return new QuantizedModel(model.getLayerWiseConfigurations().clone(), floats, weights, scales);
+    }
+
+    private static double outputError(MultiLayerNetwork model, List<INDArray> inputs, List<INDArray> reference) {
+        double sum = 0;
+        long count = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            INDArray diff = model.output(inputs.get(i)).sub(reference.get(i));
+            sum += diff.mul(diff).sumNumber().doubleValue();
+            count += diff.length();
+        }
+        return sum / count;
+    }
+
+    private static byte[] quantize(INDArray values, float scale) {
+        float[] f = values.dup('c').data().asFloat();
+        byte[] q = new byte[f.length];
+        for (int i = 0; i < f.length; i++) {
+            q[i] = (byte) Math.max(-127, Math.min(127, Math.round(f[i] / scale)));
+        }
+        return q;
+    }
+
+    private static INDArray dequantize(byte[] q, float scale, long[] shape) {
+        float[] f = new float[q.length];
+        for (int i = 0; i < q.length; i++) {
+            f[i] = q[i] * scale;
+        }
+        return Nd4j.create(f, shape, 'c');
+    }
+
+    /**
+     * A network with the dequantized weights, computing in the given data type.
+     */
+    public MultiLayerNetwork toNetwork(DataType dataType) {
+        MultiLayerNetwork model = new MultiLayerNetwork(conf.clone());
+        model.init();
+        for (Map.Entry<String, INDArray> e : floats.entrySet()) {
+            model.setParam(e.getKey(), e.getValue().reshape('c', model.getParam(e.getKey()).shape()));
+        }
+        for (Map.Entry<String, byte[]> e : weights.entrySet()) {
+            model.setParam(e.getKey(), dequantize(e.getValue(), scales.get(e.getKey()), model.getParam(e.getKey()).shape()));
+        }
+        return dataType == DataType.FLOAT ? model : model.convertDataType(dataType);
+    }
+
+    public void save(File file) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            byte[] json = conf.toJson().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(json.length);
+            out.write(json);
+            out.writeInt(floats.size());
+            for (Map.Entry<String, INDArray> e : floats.entrySet()) {
+                out.writeUTF(e.getKey());
+                float[] values = e.getValue().dup('c').data().asFloat();
+                out.writeInt(values.length);
+                for (float v : values) {
+                    out.writeFloat(v);
+                }
+            }
+            out.writeInt(weights.size());
+            for (Map.Entry<String, byte[]> e : weights.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeFloat(scales.get(e.getKey()));
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static QuantizedModel load(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a quantized model file: " + file);
+            }
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson(new String(json, StandardCharsets.UTF_8));
+            Map<String, INDArray> floats = new LinkedHashMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String key = in.readUTF();
+                float[] values = new float[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readFloat();
+                }
+                floats.put(key, Nd4j.create(values));
+            }
+            Map<String, byte[]> weights = new LinkedHashMap<>();
+            Map<String, Float> scales = new LinkedHashMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                String key = in.readUTF();
+                scales.put(key, in.readFloat());
+                byte[] q = new byte[in.readInt()];
+                in.readFully(q);
+                weights.put(key, q);
+            }
+            return new QuantizedModel(conf, floats, weights, scales);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compares the quantized network with the FP32 one on the given data: share of
+     * examples (or time steps) with the same top class, mean absolute output
+     * difference and, for one-hot labels, both Evaluations.
+     */
+    public static String driftReport(MultiLayerNetwork fp32, MultiLayerNetwork quantized, DataSetIterator data) {
+        Evaluation fp32Eval = new Evaluation();
+        Evaluation quantizedEval = new Evaluation();
+        boolean evaluate = true;
+        long agree = 0;
+        long total = 0;
+        double absDiff = 0;
+        long values = 0;
+        data.reset();
+        while (data.hasNext()) {
+            DataSet ds = data.next();
+            INDArray expected = fp32.output(ds.getFeatures());
+            INDArray actual = quantized.output(ds.getFeatures()).castTo(expected.dataType());
+            INDArray same = Nd4j.argMax(expected, 1).eq(Nd4j.argMax(actual, 1)).castTo(expected.dataType());
+            INDArray mask = ds.getLabelsMaskArray();
+            if (mask == null) {
+                agree += same.sumNumber().longValue();
+                total += same.length();
+            } else {
+                // padded time steps or examples do not count, as in Evaluation
+                mask = mask.castTo(expected.dataType()).reshape(same.shape());
+                agree += same.muli(mask).sumNumber().longValue();
+                total += mask.sumNumber().longValue();
+            }
+            absDiff += Transforms.abs(expected.sub(actual)).sumNumber().doubleValue();
+            values += expected.length();
+            evaluate &= ds.getLabels().size(1) == expected.size(1);
+            if (evaluate) {
+                fp32Eval.eval(ds.getLabels(), expected, ds.getLabelsMaskArray());
+                quantizedEval.eval(ds.getLabels(), actual, ds.getLabelsMaskArray());
+            }
+        }
+        String report = String.format("top-1 agreement %.4f, mean |output diff| %.3g", (double) agree / total, absDiff / values);
+        if (evaluate) {
+            report += String.format(", accuracy fp32 %.4f, quantized %.4f (drift %+.4f)", fp32Eval.accuracy(),
+                    quantizedEval.accuracy(), quantizedEval.accuracy() - fp32Eval.accuracy());
+        }
+        return report;
+    }
+
+    /**
+     * Bytes of the stored parameters, compared to the float parameters of the model.
+     */
+    public String sizeReport() {
+        long floatBytes = 0;
+        for (INDArray f : floats.values()) {
+            floatBytes += 4 * f.length();
+        }
+        long weightBytes = 0;
+        for (byte[] q : weights.values()) {
+            weightBytes += q.length;
+        }
+        long fp32Bytes = floatBytes + 4 * weightBytes;
+        return String.format("parameters %.1f MB quantized, %.1f MB fp32 (%.1fx smaller)",
+                (floatBytes + weightBytes) / 1e6, fp32Bytes / 1e6, (double) fp32Bytes / (floatBytes + weightBytes));
+    }
+}
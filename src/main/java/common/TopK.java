@@ -0,0 +1,79 @@
+package common;
+
+/**
+ * The k smallest distances offered so far, in a max heap on primitive arrays.
+ */
+class TopK {
+
+    private final int[] ids;
+    private final float[] distances;
+    private int size;
+
+    TopK(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1, got " + k);
+        }
+        ids = new int[k];
+        distances = new float[k];
+    }
+
+    /**
+     * Distance a candidate has to beat to get in.
+     */
+    float bound() {
+        return size < ids.length ? Float.MAX_VALUE : distances[0];
+    }
+
+    void offer(int id, float distance) {
+        if (size < ids.length) {
+            // sift up
+            int i = size++;
+            while (i > 0 && distances[(i - 1) / 2] < distance) {
+                ids[i] = ids[(i - 1) / 2];
+                distances[i] = distances[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            ids[i] = id;
+            distances[i] = distance;
+            return;
+        }
+        if (distance >= distances[0]) {
+            return;
+        }
+        replaceRoot(id, distance);
+    }
+
+    /**
+     * The ids, nearest first; empties the heap.
+     */
+    int[] drain() {
+        int[] sorted = new int[size];
+        for (int n = size; n > 0; n--) {
+            sorted[n - 1] = ids[0];
+            size--;
+            replaceRoot(ids[size], distances[size]);
+        }
+        return sorted;
+    }
+
+    private void replaceRoot(int id, float distance) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && distances[child + 1] > distances[child]) {
+                child++;
+            }
+            if (distances[child] <= distance) {
+                break;
+            }
+            ids[i] = ids[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+    }
+}
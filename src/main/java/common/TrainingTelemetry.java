@@ -0,0 +1,209 @@
+package common;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cheap replacement for StatsListener: the training thread only bumps lock-free
+ * counters and histograms (iteration time, data wait, samples), GC pauses arrive as
+ * JMX notifications, and a background thread aggregates everything every few
+ * seconds and appends one CSV line per interval to a file. At every flush fresh
+ * histograms are swapped in, so the background thread reads histograms nobody writes
+ * to anymore.
+ * <p>
+ * The time the training thread spends in telemetry (the listener and recordDataWait,
+ * plus the clock read that cannot time itself) is written as overhead percentage of
+ * the wall time. It is bounded: while an interval is above OVERHEAD_BOUND_PCT, only
+ * every n-th iteration is timed into the histograms, with n doubling each such interval.
+ */
+public class TrainingTelemetry extends BaseTrainingListener implements AutoCloseable {
+
+    private static final String HEADER = "time,iterations,samplesPerSec,iterP50Us,iterP99Us,dataWaitP50Us,"
+            + "dataWaitP99Us,dataWaitPct,gcPauses,gcPauseMs,gcMaxPauseMs,offHeapMB,physicalMB,overheadPct";
+    private static final double OVERHEAD_BOUND_PCT = 2.0;
+    private static final int MAX_SAMPLE_EVERY = 1024;
+    private static Logger log = LoggerFactory.getLogger(TrainingTelemetry.class);
+    // cost of one System.nanoTime() call, the one ending a timed section is not in it
+    private static final long CLOCK_NANOS = clockNanos();
+
+    private final LongAdder iterations = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder dataWaitNanos = new LongAdder();
+    private final LongAdder overheadNanos = new LongAdder();
+    private final AtomicReference<LatencyHistogram> iterationMicros = new AtomicReference<>(new LatencyHistogram());
+    private final AtomicReference<LatencyHistogram> dataWaitMicros = new AtomicReference<>(new LatencyHistogram());
+    private final AtomicReference<LatencyHistogram> gcPauseMillis = new AtomicReference<>(new LatencyHistogram());
+    // per training thread: end of the last iteration and number of iterations
+    private final ThreadLocal<long[]> lastIterationEnd = ThreadLocal.withInitial(() -> new long[2]);
+    private volatile int sampleEvery = 1;
+    private final List<Runnable> gcDeregistrations = new ArrayList<>();
+
+    private final ScheduledExecutorService writer;
+    private final Writer out;
+    private long lastFlush = System.nanoTime();
+    private long lastIterations;
+    private long lastSamples;
+    private long lastDataWait;
+    private long lastOverhead;
+
+    public TrainingTelemetry(File csvFile, long intervalSeconds) throws IOException {
+        boolean newFile = !csvFile.isFile();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile, true), StandardCharsets.UTF_8));
+        if (newFile) {
+            out.write(HEADER);
+            out.write('\n');
+        }
+        registerGcListeners();
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "training-telemetry");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleAtFixedRate(this::flush, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Telemetry for a trainer, written to java.io.tmpdir/&lt;name&gt;-telemetry.csv every 5 seconds.
+     */
+    public static TrainingTelemetry forTrainer(String name) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), name + "-telemetry.csv");
+        log.info("Writing training telemetry to " + file);
+        return new TrainingTelemetry(file, 5);
+    }
+
+    private void registerGcListeners() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) {
+                continue;
+            }
+            NotificationListener listener = (Notification notification, Object handback) -> {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    GarbageCollectionNotificationInfo info =
+                            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    gcPauseMillis.get().record(info.getGcInfo().getDuration());
+                }
+            };
+            NotificationEmitter emitter = (NotificationEmitter) gc;
+            emitter.addNotificationListener(listener, null, null);
+            gcDeregistrations.add(() -> {
+                try {
+                    emitter.removeNotificationListener(listener);
+                } catch (Exception e) {
+                    // already gone
+                }
+            });
+        }
+    }
+
+    /**
+     * Time the training loop spent waiting for its next minibatch.
+     */
+    public void recordDataWait(long nanos) {
+        long start = System.nanoTime();
+        dataWaitNanos.add(nanos);
+        dataWaitMicros.get().record(nanos / 1000);
+        overheadNanos.add(System.nanoTime() - start + CLOCK_NANOS);
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        long now = System.nanoTime();
+        long[] last = lastIterationEnd.get();
+        if (last[0] != 0 && ++last[1] % sampleEvery == 0) {
+            iterationMicros.get().record((now - last[0]) / 1000);
+        }
+        last[0] = now;
+        iterations.increment();
+        samples.add(model.batchSize());
+        overheadNanos.add(System.nanoTime() - now + CLOCK_NANOS);
+    }
+
+    private static long clockNanos() {
+        int calls = 100000;
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            sink += System.nanoTime();
+        }
+        long elapsed = System.nanoTime() - start;
+        // keeps the loop from being optimized away
+        return sink == 0 ? 0 : Math.max(1, elapsed / calls);
+    }
+
+    private synchronized void flush() {
+        try {
+            long now = System.nanoTime();
+            double seconds = (now - lastFlush) / 1e9;
+            long it = iterations.sum();
+            long sa = samples.sum();
+            long dw = dataWaitNanos.sum();
+            long oh = overheadNanos.sum();
+            LatencyHistogram iterationMicros = this.iterationMicros.getAndSet(new LatencyHistogram());
+            LatencyHistogram dataWaitMicros = this.dataWaitMicros.getAndSet(new LatencyHistogram());
+            LatencyHistogram gcPauseMillis = this.gcPauseMillis.getAndSet(new LatencyHistogram());
+            double overheadPct = 100 * (oh - lastOverhead) / (seconds * 1e9);
+            String line = String.format("%d,%d,%.1f,%d,%d,%d,%d,%.2f,%d,%d,%d,%.1f,%.1f,%.3f",
+                    System.currentTimeMillis(), it - lastIterations, (sa - lastSamples) / seconds,
+                    iterationMicros.percentile(50), iterationMicros.percentile(99),
+                    dataWaitMicros.percentile(50), dataWaitMicros.percentile(99),
+                    100 * (dw - lastDataWait) / (seconds * 1e9),
+                    gcPauseMillis.count(), Math.round(gcPauseMillis.mean() * gcPauseMillis.count()), gcPauseMillis.max(),
+                    Pointer.totalBytes() / 1e6, Pointer.physicalBytes() / 1e6,
+                    overheadPct);
+            boundOverhead(overheadPct);
+            lastFlush = now;
+            lastIterations = it;
+            lastSamples = sa;
+            lastDataWait = dw;
+            lastOverhead = oh;
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write training telemetry", e);
+        }
+    }
+
+    private void boundOverhead(double overheadPct) {
+        if (overheadPct > OVERHEAD_BOUND_PCT && sampleEvery < MAX_SAMPLE_EVERY) {
+            sampleEvery *= 2;
+            log.warn(String.format("Telemetry overhead %.2f%% above %.1f%%, timing every %d. iteration",
+                    overheadPct, OVERHEAD_BOUND_PCT, sampleEvery));
+        } else if (overheadPct < OVERHEAD_BOUND_PCT / 4 && sampleEvery > 1) {
+            sampleEvery /= 2;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        gcDeregistrations.forEach(Runnable::run);
+        out.close();
+    }
+}
@@ -0,0 +1,13 @@
+package common;
+
+/**
+ * Nearest neighbour search over the vectors of an {@link EmbeddingStore}, by squared
+ * euclidean distance.
+ */
+public interface VectorIndex {
+
+    /**
+     * The rows of the k nearest vectors, nearest first.
+     */
+    int[] search(float[] query, int k);
+}
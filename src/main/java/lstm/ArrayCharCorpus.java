@@ -0,0 +1,64 @@
+package lstm;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Corpus held on the heap, one char-sized index per symbol. Fine for small texts,
+ * use {@link MappedCharCorpus} for anything large.
+ */
+class ArrayCharCorpus implements RandomAccessCharCorpus {
+
+    private final char[] indices;
+    private final int length;
+    private final CharVocabulary vocabulary;
+
+    ArrayCharCorpus(char[] indices, int length, CharVocabulary vocabulary) {
+        this.indices = indices;
+        this.length = length;
+        this.vocabulary = vocabulary;
+    }
+
+    static ArrayCharCorpus read(File f) {
+        CharVocabulary vocabulary = new CharVocabulary();
+        // UTF-8 never yields more chars than bytes
+        char[] indices = new char[(int) Math.min(f.length(), Integer.MAX_VALUE - 8)];
+        int length = 0;
+        char[] buffer = new char[1 << 16];
+        try (Reader reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    indices[length++] = (char) vocabulary.add(buffer[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new ArrayCharCorpus(Arrays.copyOf(indices, length), length, vocabulary);
+    }
+
+    @Override
+    public CharVocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int indexAt(long pos) {
+        return indices[(int) pos];
+    }
+
+    @Override
+    public void read(long pos, int[] dst, int off, int len) {
+        int p = (int) pos;
+        for (int i = 0; i < len; i++) {
+            dst[off + i] = indices[p + i];
+        }
+    }
+}
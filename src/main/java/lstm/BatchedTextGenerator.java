@@ -0,0 +1,200 @@
+package lstm;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.UnaryOperator;
+
+/**
+ * Advances many independent generation streams in lockstep, one rnnTimeStep call per
+ * time step for the whole batch. Every stream owns one row of the RNN state; streams
+ * submitted from any thread join at the next step with a fresh (zero) state, and
+ * finished streams leave the batch after the step that completed them.
+ * <p>
+ * The generator owns the RNN state of the model, so the model must not be used for
+ * anything else while streams are active. {@link #step()} is meant to be driven by a
+ * single thread.
+ */
+public class BatchedTextGenerator {
+
+    private final MultiLayerNetwork model;
+    private final CharVocabulary vocabulary;
+    private final boolean indexInput;
+    private final CharSampler sampler;
+    private final Queue<Stream> joining = new ConcurrentLinkedQueue<>();
+    private final List<Stream> active = new ArrayList<>();
+
+    BatchedTextGenerator(MultiLayerNetwork model, CharVocabulary vocabulary) {
+        this.model = model;
+        this.vocabulary = vocabulary;
+        this.indexInput = LSTMGenerator.isIndexInput(model);
+        this.sampler = new CharSampler(vocabulary.size());
+        model.rnnClearPreviousState();
+    }
+
+    public static class Stream {
+        private final String prompt;
+        private final int maxLength;
+        private final char stopChar;
+        private final Random random;
+        private final StringBuilder text = new StringBuilder();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private int promptPos = 0;
+
+        private Stream(String prompt, int maxLength, char stopChar, long seed) {
+            // an empty prompt starts from a blank, like the single stream generation
+            this.prompt = prompt.isEmpty() ? " " : prompt;
+            this.maxLength = maxLength;
+            this.stopChar = stopChar;
+            this.random = new Random(seed);
+        }
+
+        private char nextInput() {
+            return promptPos < prompt.length() ? prompt.charAt(promptPos) : text.charAt(text.length() - 1);
+        }
+
+        public CompletableFuture<String> result() {
+            return result;
+        }
+    }
+
+    /**
+     * Queues a prompt; the stream joins the batch at the next step and completes after
+     * maxLength chars or after generating stopChar (which is included in the result).
+     */
+    public Stream submit(String prompt, int maxLength, char stopChar, long seed) {
+        for (char c : prompt.toCharArray()) {
+            vocabulary.indexOf(c);
+        }
+        Stream stream = new Stream(prompt, maxLength, stopChar, seed);
+        joining.add(stream);
+        return stream;
+    }
+
+    public int activeStreams() {
+        return active.size();
+    }
+
+    /**
+     * Admits waiting streams, advances all active streams by one char and drops the finished ones.
+     *
+     * @return number of streams that took part in this step
+     */
+    public int step() {
+        admit();
+        int n = active.size();
+        if (n == 0) {
+            return 0;
+        }
+
+        float[] probs = sampler.copy(model.rnnTimeStep(input()));
+
+        boolean[] keep = new boolean[n];
+        int kept = 0;
+        for (int row = 0; row < n; row++) {
+            Stream stream = active.get(row);
+            stream.promptPos++;
+            if (stream.promptPos >= stream.prompt.length()) {
+                // the prompt is consumed, this output predicts the next char
+                char c = vocabulary.charAt(sampler.sample(probs, row, stream.random));
+                stream.text.append(c);
+                if (c == stream.stopChar || stream.text.length() >= stream.maxLength) {
+                    stream.result.complete(stream.text.toString());
+                    continue;
+                }
+            }
+            keep[row] = true;
+            kept++;
+        }
+        if (kept < n) {
+            retain(keep, kept);
+        }
+        return n;
+    }
+
+    /**
+     * Steps until every submitted stream has finished.
+     */
+    public void runUntilIdle() {
+        while (step() > 0) {
+            // keep stepping
+        }
+    }
+
+    private INDArray input() {
+        int n = active.size();
+        if (indexInput) {
+            float[] idx = new float[n];
+            for (int row = 0; row < n; row++) {
+                idx[row] = vocabulary.indexOf(active.get(row).nextInput());
+            }
+            return Nd4j.create(idx, new int[]{n, 1, 1}, 'c');
+        }
+        int vocabSize = vocabulary.size();
+        float[] oneHot = new float[n * vocabSize];
+        for (int row = 0; row < n; row++) {
+            oneHot[row * vocabSize + vocabulary.indexOf(active.get(row).nextInput())] = 1f;
+        }
+        return Nd4j.create(oneHot, new int[]{n, vocabSize}, 'c');
+    }
+
+    private void admit() {
+        int joined = 0;
+        Stream stream;
+        while ((stream = joining.poll()) != null) {
+            active.add(stream);
+            joined++;
+        }
+        if (joined == 0 || active.size() == joined) {
+            // nothing to add, or a fresh batch that starts from the default zero state
+            if (joined > 0) {
+                model.rnnClearPreviousState();
+            }
+            return;
+        }
+        int rows = joined;
+        updateState(state -> Nd4j.vstack(state, Nd4j.zeros(rows, state.size(1))));
+    }
+
+    private void retain(boolean[] keep, int kept) {
+        int[] rows = new int[kept];
+        List<Stream> remaining = new ArrayList<>(kept);
+        for (int row = 0, r = 0; row < keep.length; row++) {
+            if (keep[row]) {
+                rows[r++] = row;
+                remaining.add(active.get(row));
+            }
+        }
+        active.clear();
+        active.addAll(remaining);
+        if (kept == 0) {
+            model.rnnClearPreviousState();
+        } else {
+            updateState(state -> state.getRows(rows));
+        }
+    }
+
+    private void updateState(UnaryOperator<INDArray> update) {
+        Layer[] layers = model.getLayers();
+        for (int i = 0; i < layers.length; i++) {
+            if (!(layers[i] instanceof RecurrentLayer)) {
+                continue;
+            }
+            Map<String, INDArray> state = model.rnnGetPreviousState(i);
+            if (state == null || state.isEmpty()) {
+                continue;
+            }
+            Map<String, INDArray> updated = new HashMap<>();
+            for (Map.Entry<String, INDArray> e : state.entrySet()) {
+                updated.put(e.getKey(), update.apply(e.getValue()));
+            }
+            model.rnnSetPreviousState(i, updated);
+        }
+    }
+}
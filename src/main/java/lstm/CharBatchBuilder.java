@@ -0,0 +1,149 @@
+package lstm;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds batches in flat float buffers and hands them to ND4J in one bulk copy
+ * per array. Chars are either one-hot encoded ([batch, vocab, seqLen]) or given
+ * as class indices ([batch, 1, seqLen]) for an embedding input layer and a sparse
+ * loss. The buffers are reused between batches (only the ones written are cleared
+ * again) and the masks only depend on the batch size, so they are created once per
+ * size. Not thread safe, use one builder per thread.
+ */
+class CharBatchBuilder {
+
+    private final int vocabSize;
+    private final int seqLen;
+    private final CharIterator.Encoding encoding;
+    private final Map<Integer, INDArray[]> masks = new HashMap<>();
+    private int[] span = new int[0];
+    private float[] features = new float[0];
+    private float[] labels = new float[0];
+
+    CharBatchBuilder(int vocabSize, int seqLen, CharIterator.Encoding encoding) {
+        this.vocabSize = vocabSize;
+        this.seqLen = seqLen;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Row i of the batch holds the chars [pos + i, pos + i + seqLen), labels are shifted by one.
+     */
+    DataSet build(RandomAccessCharCorpus corpus, long pos, int batchSize) {
+        int spanLen = batchSize + seqLen;
+        int depth = encoding == CharIterator.Encoding.ONE_HOT ? vocabSize : 1;
+        int size = batchSize * depth * seqLen;
+        if (span.length < spanLen) {
+            span = new int[spanLen];
+        }
+        if (features.length < size) {
+            features = new float[size];
+            labels = new float[size];
+        }
+        corpus.read(pos, span, 0, spanLen);
+
+        INDArray[] mask = masks.computeIfAbsent(batchSize, this::createMasks);
+        if (encoding == CharIterator.Encoding.INDEX) {
+            return new DataSet(indexArray(features, batchSize, 0), indexArray(labels, batchSize, 1), mask[0], mask[1]);
+        }
+
+        // [miniBatchSize,inputSize,timeSeriesLength] in c order
+        int rowStride = vocabSize * seqLen;
+        for (int i = 0; i < batchSize; i++) {
+            int row = i * rowStride;
+            for (int j = 0; j < seqLen; j++) {
+                features[row + span[i + j] * seqLen + j] = 1f;
+                labels[row + span[i + j + 1] * seqLen + j] = 1f;
+            }
+        }
+        int[] shape = {batchSize, vocabSize, seqLen};
+        INDArray featureArr = Nd4j.create(features, shape, 'c');
+        INDArray labelArr = Nd4j.create(labels, shape, 'c');
+
+        for (int i = 0; i < batchSize; i++) {
+            int row = i * rowStride;
+            for (int j = 0; j < seqLen; j++) {
+                features[row + span[i + j] * seqLen + j] = 0f;
+                labels[row + span[i + j + 1] * seqLen + j] = 0f;
+            }
+        }
+
+        return new DataSet(featureArr, labelArr, mask[0], mask[1]);
+    }
+
+    /**
+     * Row i holds the chars [i * laneLength + offset, ... + steps) of lane i, labels are
+     * shifted by one. No masks, every step is trained.
+     */
+    DataSet buildLanes(RandomAccessCharCorpus corpus, long laneLength, long offset, int batchSize, int steps) {
+        int rowLen = steps + 1;
+        int depth = encoding == CharIterator.Encoding.ONE_HOT ? vocabSize : 1;
+        int size = batchSize * depth * steps;
+        if (span.length < batchSize * rowLen) {
+            span = new int[batchSize * rowLen];
+        }
+        if (features.length < size) {
+            features = new float[size];
+            labels = new float[size];
+        }
+        for (int i = 0; i < batchSize; i++) {
+            corpus.read(i * laneLength + offset, span, i * rowLen, rowLen);
+        }
+
+        if (encoding == CharIterator.Encoding.INDEX) {
+            for (int i = 0; i < batchSize; i++) {
+                for (int j = 0; j < steps; j++) {
+                    features[i * steps + j] = span[i * rowLen + j];
+                    labels[i * steps + j] = span[i * rowLen + j + 1];
+                }
+            }
+            int[] shape = {batchSize, 1, steps};
+            return new DataSet(Nd4j.create(features, shape, 'c'), Nd4j.create(labels, shape, 'c'));
+        }
+
+        int rowStride = vocabSize * steps;
+        for (int i = 0; i < batchSize; i++) {
+            for (int j = 0; j < steps; j++) {
+                features[i * rowStride + span[i * rowLen + j] * steps + j] = 1f;
+                labels[i * rowStride + span[i * rowLen + j + 1] * steps + j] = 1f;
+            }
+        }
+        int[] shape = {batchSize, vocabSize, steps};
+        INDArray featureArr = Nd4j.create(features, shape, 'c');
+        INDArray labelArr = Nd4j.create(labels, shape, 'c');
+        for (int i = 0; i < batchSize; i++) {
+            for (int j = 0; j < steps; j++) {
+                features[i * rowStride + span[i * rowLen + j] * steps + j] = 0f;
+                labels[i * rowStride + span[i * rowLen + j + 1] * steps + j] = 0f;
+            }
+        }
+        return new DataSet(featureArr, labelArr);
+    }
+
+    private INDArray indexArray(float[] buffer, int batchSize, int shift) {
+        // [miniBatchSize,1,timeSeriesLength], every entry is overwritten so no clearing needed
+        for (int i = 0; i < batchSize; i++) {
+            for (int j = 0; j < seqLen; j++) {
+                buffer[i * seqLen + j] = span[i + j + shift];
+            }
+        }
+        return Nd4j.create(buffer, new int[]{batchSize, 1, seqLen}, 'c');
+    }
+
+    private INDArray[] createMasks(int batchSize) {
+        // masks : many-to-many, but ignore first half of output (warm up)
+        float[] labelMask = new float[batchSize * seqLen];
+        for (int i = 0; i < batchSize; i++) {
+            for (int j = seqLen / 2 + 1; j < seqLen; j++) {
+                labelMask[i * seqLen + j] = 1f;
+            }
+        }
+        INDArray featureMask = Nd4j.ones(batchSize, seqLen);
+        return new INDArray[]{featureMask, Nd4j.create(labelMask, new int[]{batchSize, seqLen}, 'c')};
+    }
+}
@@ -0,0 +1,209 @@
+package lstm;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the batches of a {@link CharIterator} ahead of time on a pool of worker threads.
+ * At most queueSize batches are in flight, never past the end of the iterator's epoch. They are handed out in batch index order,
+ * and every batch uses the random stream of its index, so the sequence is the same as
+ * the one of the plain iterator no matter how many workers there are.
+ * <p>
+ * The occupancy counters tell how many batches were ready whenever the training loop
+ * asked for one: if the queue is mostly empty and the loop stalls, add workers; if it
+ * is always full, the queue can be smaller.
+ */
+public class CharBatchPrefetcher implements DataSetIterator, AutoCloseable {
+
+    private final CharIterator source;
+    private final int queueSize;
+    private final ExecutorService workers;
+    private final ThreadLocal<CharBatchBuilder> builders;
+    private final ArrayDeque<Future<DataSet>> queue = new ArrayDeque<>();
+    private long nextBatch = 0;
+    private long position = 0;
+
+    private long taken;
+    private long readySum;
+    private long stalls;
+    private long stallNanos;
+
+    CharBatchPrefetcher(CharIterator source, int workerCount, int queueSize) {
+        this.source = source;
+        this.queueSize = queueSize;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "char-prefetch-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        this.builders = ThreadLocal.withInitial(source::newBatchBuilder);
+        fill();
+    }
+
+    private void fill() {
+        while (queue.size() < queueSize && source.hasBatch(nextBatch)) {
+            long index = nextBatch++;
+            queue.add(workers.submit(() -> source.batch(index, source.batch(), builders.get())));
+        }
+    }
+
+    @Override
+    public DataSet next(int num) {
+        if (num != source.batch()) {
+            throw new IllegalArgumentException("Prefetched batches have size " + source.batch() + ", requested " + num);
+        }
+        int ready = 0;
+        for (Future<DataSet> f : queue) {
+            if (f.isDone()) {
+                ready++;
+            }
+        }
+        Future<DataSet> head = queue.poll();
+        if (head == null) {
+            throw new NoSuchElementException("End of epoch, reset() first");
+        }
+        position++;
+        taken++;
+        readySum += ready;
+        try {
+            DataSet dataSet;
+            if (head.isDone()) {
+                dataSet = head.get();
+            } else {
+                long start = System.nanoTime();
+                dataSet = head.get();
+                stalls++;
+                stallNanos += System.nanoTime() - start;
+            }
+            fill();
+            return dataSet;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Index of the batch the next call of next() returns, within the current epoch.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Continues with the batch of the given index, e.g. when resuming from a checkpoint.
+     */
+    public void seek(long index) {
+        for (Future<DataSet> f : queue) {
+            f.cancel(false);
+        }
+        queue.clear();
+        nextBatch = index;
+        position = index;
+        fill();
+    }
+
+    /**
+     * Batches handed out since the prefetcher was created, over all epochs and seeks.
+     */
+    public long taken() {
+        return taken;
+    }
+
+    /**
+     * Average number of finished batches waiting in the queue when a batch was requested.
+     */
+    public double averageOccupancy() {
+        return taken == 0 ? 0 : (double) readySum / taken;
+    }
+
+    /**
+     * Fraction of requests that had to wait for a batch to be built.
+     */
+    public double stallRatio() {
+        return taken == 0 ? 0 : (double) stalls / taken;
+    }
+
+    public String occupancyReport() {
+        return String.format("prefetch queue: %d batches taken, avg %.2f/%d ready, %.1f%% stalled, %.1f ms waited",
+                taken, averageOccupancy(), queueSize, 100 * stallRatio(), stallNanos / 1e6);
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    @Override
+    public int inputColumns() {
+        return source.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return source.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // already asynchronous, no need for another prefetch thread on top
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        for (Future<DataSet> f : queue) {
+            f.cancel(false);
+        }
+        queue.clear();
+        source.reset();
+        nextBatch = 0;
+        position = 0;
+        fill();
+    }
+
+    @Override
+    public int batch() {
+        return source.batch();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor dataSetPreProcessor) {
+
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return null;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return source.hasBatch(position);
+    }
+
+    @Override
+    public DataSet next() {
+        return next(source.batch());
+    }
+}
@@ -0,0 +1,18 @@
+package lstm;
+
+import java.util.Random;
+
+/**
+ * Text encoded as a sequence of vocabulary indices. Training windows are drawn from a
+ * region; random access corpora are their own region, see {@link RandomAccessCharCorpus}.
+ */
+interface CharCorpus {
+
+    CharVocabulary vocabulary();
+
+    /**
+     * The part of the corpus the next window is drawn from. Random access corpora
+     * return themselves, streaming ones one of the chunks they currently hold.
+     */
+    RandomAccessCharCorpus region(Random random);
+}
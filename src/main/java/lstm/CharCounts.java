@@ -0,0 +1,95 @@
+package lstm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the chars of UTF-8 text files in one parallel pass. The files are cut into
+ * byte ranges that are decoded and counted independently; a range starts at its
+ * first byte that is not a UTF-8 continuation byte and runs up to the same point of
+ * the next range, so every char is counted exactly once.
+ */
+class CharCounts {
+
+    private static final int RANGE_SIZE = 16 << 20;
+
+    private CharCounts() {
+    }
+
+    /**
+     * Occurrences of every char, indexed by the char value.
+     */
+    static long[] count(List<File> files) {
+        List<long[]> ranges = new ArrayList<>();
+        for (int f = 0; f < files.size(); f++) {
+            long length = files.get(f).length();
+            for (long start = 0; start < length; start += RANGE_SIZE) {
+                ranges.add(new long[]{f, start, Math.min(length, start + RANGE_SIZE)});
+            }
+        }
+        return ranges.parallelStream()
+                .map(r -> count(files.get((int) r[0]), r[1], r[2]))
+                .reduce(new long[Character.MAX_VALUE + 1], CharCounts::add);
+    }
+
+    private static long[] add(long[] a, long[] b) {
+        long[] sum = new long[a.length];
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] = a[i] + b[i];
+        }
+        return sum;
+    }
+
+    private static long[] count(File file, long start, long end) {
+        long[] counts = new long[Character.MAX_VALUE + 1];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // up to 3 bytes before and after the range decide where its chars begin and end
+            long from = Math.max(0, start - 3);
+            long to = Math.min(channel.size(), end + 3);
+            ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+            while (bytes.hasRemaining() && channel.read(bytes, from + bytes.position()) != -1) {
+                // read fully
+            }
+            bytes.flip();
+            int first = charStart(bytes, (int) (start - from));
+            int last = end == channel.size() ? bytes.limit() : charStart(bytes, (int) (end - from));
+            bytes.position(first).limit(last);
+
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(1 << 16);
+            boolean done = false;
+            while (!done) {
+                done = !decoder.decode(bytes, chars, true).isOverflow();
+                if (done) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                while (chars.hasRemaining()) {
+                    counts[chars.get()]++;
+                }
+                chars.clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return counts;
+    }
+
+    private static int charStart(ByteBuffer bytes, int pos) {
+        while (pos < bytes.limit() && (bytes.get(pos) & 0xC0) == 0x80) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -1,103 +1,158 @@
 package lstm;
 
-import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
 
-import java.io.*;
-import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.io.File;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 public class CharIterator implements DataSetIterator {
 
-    private final int[] text;
-    private final Map<Integer, Integer> charToIdx;
-    private int pos = 0;
+    /**
+     * How chars are fed to the network: ONE_HOT gives [batch, vocab, seqLen] features and labels,
+     * INDEX gives [batch, 1, seqLen] class indices for an embedding layer and a sparse loss.
+     */
+    public enum Encoding {
+        ONE_HOT, INDEX
+    }
+
+    /**
+     * Which text a batch holds. RANDOM_WINDOWS: seqLen chars from a random position,
+     * row i starting one char after row i - 1, endless. SEQUENTIAL_LANES: the corpus is
+     * cut into batchSize contiguous lanes and batch k holds the k-th segment of seqLen
+     * chars of every lane, so every char is a label once per epoch and hasNext() ends
+     * the epoch. Within one fit the RNN state runs through the whole segment, tBPTT
+     * only truncates the gradients; use segments much longer than the tBPTT length.
+     */
+    public enum Order {
+        RANDOM_WINDOWS, SEQUENTIAL_LANES
+    }
+
+    private final CharCorpus corpus;
+    // the corpus itself for sequential lanes, null for random windows
+    private final RandomAccessCharCorpus lanes;
+    private final CharVocabulary vocabulary;
+    private final CharBatchBuilder batchBuilder;
+    private final Encoding encoding;
+    private final Order order;
+    private final long laneLength;
+    private final long segments;
+    private final long seed;
+    private long batchIndex = 0;
     private int seqLen;
     private int batchSize;
-    private Random random;
 
     CharIterator(String fileName, int seqLen, int batchSize) {
-        random = new Random(123456789);
-        this.seqLen = seqLen;
-        this.batchSize = batchSize;
-        File f = new File(fileName);
-        text = readTextInput(f);
-        charToIdx = createIndex(text);
-        System.out.println("Read text completed, text size = " + text.length);
-        System.out.println("Different chats = " + charToIdx.size());
+        this(ArrayCharCorpus.read(new File(fileName)), seqLen, batchSize);
+    }
 
+    CharIterator(CharCorpus corpus, int seqLen, int batchSize) {
+        this(corpus, seqLen, batchSize, Encoding.ONE_HOT);
     }
 
-    private Map<Integer, Integer> createIndex(int[] text) {
-        Map<Integer, Integer> idxMap = new HashMap<>();
-        for (int value : text) {
-            if (!idxMap.containsKey(value)) {
-                idxMap.put(value, idxMap.size());
+    CharIterator(CharCorpus corpus, int seqLen, int batchSize, Encoding encoding) {
+        this(corpus, seqLen, batchSize, encoding, Order.RANDOM_WINDOWS);
+    }
+
+    CharIterator(CharCorpus corpus, int seqLen, int batchSize, Encoding encoding, Order order) {
+        seed = 123456789;
+        this.seqLen = seqLen;
+        this.batchSize = batchSize;
+        this.corpus = corpus;
+        this.vocabulary = corpus.vocabulary();
+        this.encoding = encoding;
+        this.order = order;
+        this.batchBuilder = newBatchBuilder();
+        if (order == Order.SEQUENTIAL_LANES) {
+            if (!(corpus instanceof RandomAccessCharCorpus)) {
+                throw new IllegalArgumentException("Sequential lanes need a random access corpus");
             }
+            lanes = (RandomAccessCharCorpus) corpus;
+            laneLength = lanes.length() / batchSize;
+            // the last char of a lane is only a label
+            segments = (laneLength - 1 + seqLen - 1) / seqLen;
+            if (segments <= 0) {
+                throw new IllegalArgumentException("Corpus too short for " + batchSize + " lanes");
+            }
+        } else {
+            lanes = null;
+            laneLength = 0;
+            segments = 0;
+        }
+        if (corpus instanceof RandomAccessCharCorpus) {
+            System.out.println("Read text completed, text size = " + ((RandomAccessCharCorpus) corpus).length());
         }
-        return idxMap;
+        System.out.println("Different chats = " + vocabulary.size());
+
     }
 
+    /**
+     * Every batch draws its window from its own random stream derived from the seed and
+     * the batch index, so batches can be built on any thread in any order and still be
+     * the same for a given seed.
+     */
+    DataSet batch(long index, int batchSize, CharBatchBuilder builder) {
+        if (order == Order.SEQUENTIAL_LANES) {
+            return laneBatch(index, batchSize, builder);
+        }
+        Random random = new Random(mix(seed, index));
+        RandomAccessCharCorpus region = corpus.region(random);
+        // row i reads [pos + i, pos + i + seqLen], so the window spans batchSize + seqLen chars
+        long pos = nextPos(random, region.length() - batchSize - seqLen);
+        return builder.build(region, pos, batchSize);
+    }
 
-    private int[] readTextInput(File f) {
-        try {
-            int[] text = new int[(int) f.length()];
-            int c, i = 0;
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(new FileInputStream(f), Charset.forName("UTF-8")));
-            while ((c = reader.read()) != -1) {
-                text[i++] = c;
-            }
-            return text;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private DataSet laneBatch(long index, int batchSize, CharBatchBuilder builder) {
+        if (batchSize != this.batchSize) {
+            throw new IllegalArgumentException("Sequential lanes have " + this.batchSize + " rows, requested " + batchSize);
         }
+        long offset = (index % segments) * seqLen;
+        int steps = (int) Math.min(seqLen, laneLength - 1 - offset);
+        return builder.buildLanes(lanes, laneLength, offset, batchSize, steps);
     }
 
+    /**
+     * Whether the batch with this index belongs to the current epoch.
+     */
+    boolean hasBatch(long index) {
+        return order == Order.RANDOM_WINDOWS || index < segments;
+    }
 
-    @Override
-    public DataSet next(int batchSize) {
-        pos = random.nextInt(text.length - seqLen - 1);
-
-        System.out.println("Generating sample at : " + pos);
-        // [miniBatchSize,inputSize,timeSeriesLength]
-        INDArray features = Nd4j.zeros(batchSize, charToIdx.size(), seqLen);
-        INDArray labels = Nd4j.zeros(batchSize, charToIdx.size(), seqLen);
-        // masks : many-to-many, but ignore first half of output (warm up)
-        // all input columns, but only final output is relevant
-        INDArray featureMask = Nd4j.zeros(new int[]{batchSize, seqLen});
-        INDArray labelMask = Nd4j.zeros(new int[]{batchSize, seqLen});
-        for (int i = 0; i < batchSize; i++) {
-            for (int j = 0; j < seqLen; j++) {
-                features.putScalar(new int[]{i, charToIdx.get(text[pos + i + j]), j}, 1f);
-                labels.putScalar(new int[]{i, charToIdx.get(text[pos + i + j + 1]), j}, 1f);
-                if (j > seqLen / 2) {  // ignore start for warm up
-                    labelMask.putScalar(new int[]{i, j}, 1f);
-                }
-                featureMask.putScalar(new int[]{i, j}, 1f);
-            }
+    CharBatchBuilder newBatchBuilder() {
+        return new CharBatchBuilder(vocabulary.size(), seqLen, encoding);
+    }
 
+    // splitmix64 finalizer, decorrelates the streams of neighbouring batch indices
+    private static long mix(long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long nextPos(Random random, long bound) {
+        if (bound <= Integer.MAX_VALUE) {
+            return random.nextInt((int) bound);
         }
+        return (random.nextLong() >>> 1) % bound;
+    }
 
 
-        pos += batchSize;
-        return new DataSet(features, labels, featureMask, labelMask);
+    @Override
+    public DataSet next(int batchSize) {
+        return batch(batchIndex++, batchSize, batchBuilder);
     }
 
     @Override
     public int inputColumns() {
-        return charToIdx.size();
+        return encoding == Encoding.INDEX ? 1 : vocabulary.size();
     }
 
     @Override
     public int totalOutcomes() {
-        return charToIdx.size();
+        return vocabulary.size();
     }
 
     @Override
@@ -107,12 +162,12 @@ public class CharIterator implements DataSetIterator {
 
     @Override
     public boolean asyncSupported() {
-        return false;
+        return true;
     }
 
     @Override
     public void reset() {
-        pos = 0;
+        batchIndex = 0;
     }
 
     @Override
@@ -137,7 +192,7 @@ public class CharIterator implements DataSetIterator {
 
     @Override
     public boolean hasNext() {
-        return true;
+        return hasBatch(batchIndex);
     }
 
     @Override
@@ -145,7 +200,11 @@ public class CharIterator implements DataSetIterator {
         return next(batchSize);
     }
 
-    Map<Integer, Integer> getCharToIdx() {
-        return charToIdx;
+    Encoding getEncoding() {
+        return encoding;
+    }
+
+    CharVocabulary getVocabulary() {
+        return vocabulary;
     }
 }
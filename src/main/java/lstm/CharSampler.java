@@ -0,0 +1,184 @@
+package lstm;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Samples the next char from the softmax output of the network. All buffers are
+ * allocated up front, so a sampling step does not allocate on the Java heap.
+ * <p>
+ * temperature rescales the distribution (p^(1/T)), topK keeps only the k most likely
+ * chars (0 = all) and topP keeps the smallest set of most likely chars whose mass
+ * reaches p (1 = all). With the defaults (1, 0, 1) the result is the plain
+ * cumulative sampling over the vocabulary order. Not thread safe.
+ */
+class CharSampler {
+
+    private final int vocabSize;
+    private final double inverseTemperature;
+    private final int topK;
+    private final double topP;
+    private final double[] weights;
+    private final double[] cumulative;
+    private final int[] order;
+    private float[] rows;
+    // direct memory the network output is assigned into, viewed by ND4J and by Java
+    private ByteBuffer stagingMemory;
+    private FloatBuffer stagingFloats;
+    private INDArray staging;
+
+    CharSampler(int vocabSize) {
+        this(vocabSize, 1.0, 0, 1.0);
+    }
+
+    CharSampler(int vocabSize, double temperature, int topK, double topP) {
+        if (temperature <= 0 || topK < 0 || topP <= 0 || topP > 1) {
+            throw new IllegalArgumentException("Invalid sampling parameters: temperature=" + temperature
+                    + ", topK=" + topK + ", topP=" + topP);
+        }
+        this.vocabSize = vocabSize;
+        this.inverseTemperature = 1.0 / temperature;
+        this.topK = topK;
+        this.topP = topP;
+        this.weights = new double[vocabSize];
+        this.cumulative = new double[vocabSize];
+        this.order = new int[vocabSize];
+        this.rows = new float[vocabSize];
+    }
+
+    /**
+     * Copies the [rows, vocab] probabilities of a time step into a reused buffer: assign
+     * converts them into a staging array of the same shape in direct memory, whatever the
+     * data type and layout of the output, and one bulk get moves them to the heap. The
+     * staging array is only replaced when the shape of the output changes.
+     */
+    float[] copy(INDArray output) {
+        if (staging == null || !sameShape(staging, output)) {
+            stage(output);
+        }
+        staging.assign(output);
+        int length = (int) output.length();
+        stagingFloats.clear();
+        stagingFloats.get(rows, 0, length);
+        return rows;
+    }
+
+    private static boolean sameShape(INDArray a, INDArray b) {
+        if (a.rank() != b.rank()) {
+            return false;
+        }
+        for (int i = 0; i < a.rank(); i++) {
+            if (a.size(i) != b.size(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stage(INDArray output) {
+        int length = (int) output.length();
+        if (stagingMemory == null || stagingMemory.capacity() < 4 * length) {
+            stagingMemory = ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder());
+            stagingFloats = stagingMemory.asFloatBuffer();
+        }
+        if (rows.length < length) {
+            rows = new float[length];
+        }
+        long[] shape = new long[output.rank()];
+        for (int i = 0; i < shape.length; i++) {
+            shape[i] = output.size(i);
+        }
+        staging = Nd4j.create(Nd4j.createBuffer(stagingMemory, DataType.FLOAT, length), shape);
+    }
+
+    /**
+     * Samples a vocabulary index from row of a buffer returned by {@link #copy(INDArray)}.
+     */
+    int sample(float[] probs, int row, Random random) {
+        int offset = row * vocabSize;
+        double total = 0;
+        for (int i = 0; i < vocabSize; i++) {
+            double p = probs[offset + i];
+            weights[i] = inverseTemperature == 1.0 ? p : Math.pow(p, inverseTemperature);
+            total += weights[i];
+            order[i] = i;
+        }
+
+        int candidates = vocabSize;
+        if (topK > 0 || topP < 1) {
+            sortByWeightDescending();
+            if (topK > 0) {
+                candidates = Math.min(topK, vocabSize);
+            }
+            if (topP < 1) {
+                double mass = 0;
+                for (int i = 0; i < candidates; i++) {
+                    mass += weights[order[i]];
+                    if (mass >= topP * total) {
+                        candidates = i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+
+        double sum = 0;
+        for (int i = 0; i < candidates; i++) {
+            sum += weights[order[i]];
+            cumulative[i] = sum;
+        }
+        double target = random.nextDouble() * sum;
+        int lo = 0;
+        int hi = candidates - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] > target) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return order[lo];
+    }
+
+    // in place heap sort of the index array on a min heap, which leaves it in descending weight order
+    private void sortByWeightDescending() {
+        int n = vocabSize;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            int tmp = order[0];
+            order[0] = order[end];
+            order[end] = tmp;
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < n && weights[order[left]] < weights[order[smallest]]) {
+                smallest = left;
+            }
+            if (right < n && weights[order[right]] < weights[order[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            int tmp = order[i];
+            order[i] = order[smallest];
+            order[smallest] = tmp;
+            i = smallest;
+        }
+    }
+}
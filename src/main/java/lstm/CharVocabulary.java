@@ -0,0 +1,171 @@
+package lstm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Maps chars to dense class indices and back. Java chars are 16 bit, so a flat
+ * table with one slot per char replaces the boxed Map lookups.
+ * <p>
+ * The vocabulary of a trained model is saved next to it ("&lt;model&gt;.vocab"), so the
+ * model can be restored and decoded without reading the corpus again.
+ */
+class CharVocabulary {
+
+    private static final int MAGIC = 0x43564F43; // "CVOC"
+    private static final int VERSION = 1;
+    private static final int NO_INDEX = -1;
+    private static Logger log = LoggerFactory.getLogger(CharVocabulary.class);
+
+    private final int[] charToIdx = new int[Character.MAX_VALUE + 1];
+    private char[] idxToChar;
+    private int size;
+
+    CharVocabulary() {
+        Arrays.fill(charToIdx, NO_INDEX);
+        idxToChar = new char[128];
+    }
+
+    CharVocabulary(char[] chars) {
+        this();
+        for (char c : chars) {
+            add(c);
+        }
+    }
+
+    /**
+     * Vocabulary of all chars with a count above zero. Ordered by frequency the most
+     * common chars get the smallest indices, otherwise chars are ordered by value.
+     */
+    static CharVocabulary fromCounts(long[] counts, boolean byFrequency) {
+        IntStream chars = IntStream.range(0, counts.length).filter(c -> counts[c] > 0);
+        if (byFrequency) {
+            chars = chars.boxed()
+                    .sorted(Comparator.comparingLong((Integer c) -> counts[c]).reversed())
+                    .mapToInt(Integer::intValue);
+        }
+        CharVocabulary vocabulary = new CharVocabulary();
+        chars.forEach(c -> vocabulary.add((char) c));
+        return vocabulary;
+    }
+
+    /**
+     * Vocabulary of the text in the order the chars first appear, the order models were
+     * trained with before vocabularies were saved.
+     */
+    static CharVocabulary inAppearanceOrder(File text) {
+        CharVocabulary vocabulary = new CharVocabulary();
+        char[] buffer = new char[1 << 16];
+        try (Reader reader = new InputStreamReader(new FileInputStream(text), StandardCharsets.UTF_8)) {
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    vocabulary.add(buffer[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return vocabulary;
+    }
+
+    static File fileFor(File model) {
+        return new File(model.getPath() + ".vocab");
+    }
+
+    /**
+     * The saved vocabulary, or, if the file is missing, e.g. for models saved before
+     * vocabularies were, the rebuilt one, which is then saved to the file.
+     */
+    static CharVocabulary load(File file, Supplier<CharVocabulary> rebuild) {
+        if (file.isFile()) {
+            return load(file);
+        }
+        log.warn("No vocabulary file " + file + ", rebuilding the vocabulary from the corpus");
+        CharVocabulary vocabulary = rebuild.get();
+        vocabulary.save(file);
+        return vocabulary;
+    }
+
+    static CharVocabulary load(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a vocabulary file: " + file);
+            }
+            char[] chars = new char[in.readInt()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = in.readChar();
+            }
+            return new CharVocabulary(chars);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void save(File file) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeChar(idxToChar[i]);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds the char if it is not known yet and returns its index.
+     */
+    int add(char c) {
+        int idx = charToIdx[c];
+        if (idx == NO_INDEX) {
+            if (size == idxToChar.length) {
+                idxToChar = Arrays.copyOf(idxToChar, size * 2);
+            }
+            idx = size++;
+            idxToChar[idx] = c;
+            charToIdx[c] = idx;
+        }
+        return idx;
+    }
+
+    boolean contains(char c) {
+        return charToIdx[c] != NO_INDEX;
+    }
+
+    int indexOf(char c) {
+        int idx = charToIdx[c];
+        if (idx == NO_INDEX) {
+            throw new IllegalArgumentException("Char not in vocabulary: '" + c + "' (" + (int) c + ")");
+        }
+        return idx;
+    }
+
+    char charAt(int idx) {
+        return idxToChar[idx];
+    }
+
+    int size() {
+        return size;
+    }
+
+    char[] toCharArray() {
+        return Arrays.copyOf(idxToChar, size);
+    }
+
+    /**
+     * Same chars with the same indices.
+     */
+    boolean sameAs(CharVocabulary other) {
+        return Arrays.equals(toCharArray(), other.toCharArray());
+    }
+}
@@ -0,0 +1,230 @@
+package lstm;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Lets several generation sessions share one model. The RNN state (hidden and cell
+ * state of every recurrent layer) after a text is snapshotted into an LRU cache keyed
+ * by that text, together with the output of the last step. A request restores the
+ * snapshot of the longest cached prefix of its text and only feeds the remaining chars,
+ * instead of warming up the net with the whole text again. The cached texts are also
+ * indexed by String.hashCode, which is computed char by char, so the longest prefix is
+ * found in one pass over the text. Snapshots are dups of the
+ * ND4J state arrays, their (off-heap) bytes are kept below the budget by evicting the
+ * least recently used ones.
+ * <p>
+ * All calls are serialized on this object because they swap the state of the one model.
+ * The cache is dropped whenever the model's iteration count changed, so snapshots never
+ * outlive the parameters they were computed with.
+ */
+public class GenerationSessions {
+
+    private final MultiLayerNetwork model;
+    private final CharVocabulary vocabulary;
+    private final long budgetBytes;
+    private final TimeStepInput input;
+    private final CharSampler sampler;
+    private final LinkedHashMap<String, Snapshot> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, List<String>> byHash = new HashMap<>();
+    private long cachedBytes;
+    private int iterationCount = -1;
+    private long requests;
+    private long resumedChars;
+    private long replayedChars;
+
+    GenerationSessions(MultiLayerNetwork model, CharVocabulary vocabulary, long budgetBytes,
+                       double temperature, int topK, double topP) {
+        this.model = model;
+        this.vocabulary = vocabulary;
+        this.budgetBytes = budgetBytes;
+        this.input = new TimeStepInput(vocabulary.size(), LSTMGenerator.isIndexInput(model));
+        this.sampler = new CharSampler(vocabulary.size(), temperature, topK, topP);
+    }
+
+    /**
+     * A conversation: everything fed into and generated by the net so far.
+     */
+    public static class Session {
+        private final Random random;
+        private String history = "";
+
+        private Session(long seed) {
+            this.random = new Random(seed);
+        }
+
+        public String history() {
+            return history;
+        }
+    }
+
+    private static class Snapshot {
+        private final Map<Integer, Map<String, INDArray>> state;
+        private final float[] output;
+        private final long bytes;
+
+        private Snapshot(Map<Integer, Map<String, INDArray>> state, float[] output, long bytes) {
+            this.state = state;
+            this.output = output;
+            this.bytes = bytes;
+        }
+    }
+
+    public Session openSession(long seed) {
+        return new Session(seed);
+    }
+
+    /**
+     * One-off generation of length chars after the prompt.
+     */
+    public String complete(String prompt, int length, long seed) {
+        return generate(openSession(seed), prompt, length);
+    }
+
+    /**
+     * Appends the prompt to the session and generates length chars after it.
+     */
+    public synchronized String generate(Session session, String prompt, int length) {
+        for (char c : prompt.toCharArray()) {
+            vocabulary.indexOf(c);
+        }
+        checkParameters();
+        requests++;
+        // like the other generators an empty start is a blank
+        String text = session.history + (session.history.isEmpty() && prompt.isEmpty() ? " " : prompt);
+        float[] output = resume(text);
+
+        StringBuilder generated = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int next = sampler.sample(output, 0, session.random);
+            generated.append(vocabulary.charAt(next));
+            output = step(next);
+        }
+        session.history = text + generated;
+        remember(session.history, output);
+        return generated.toString();
+    }
+
+    private float[] resume(String text) {
+        String prefix = longestCachedPrefix(text);
+        int cached = prefix == null ? 0 : prefix.length();
+        Snapshot snapshot = prefix == null ? null : cache.get(prefix);
+        float[] output;
+        if (snapshot == null) {
+            model.rnnClearPreviousState();
+            output = null;
+        } else {
+            restore(snapshot);
+            output = snapshot.output;
+        }
+        for (int i = cached; i < text.length(); i++) {
+            output = step(vocabulary.indexOf(text.charAt(i)));
+        }
+        resumedChars += cached;
+        replayedChars += text.length() - cached;
+        if (cached < text.length()) {
+            remember(text, output);
+        }
+        return output;
+    }
+
+    private String longestCachedPrefix(String text) {
+        String longest = null;
+        int hash = 0;
+        for (int i = 0; i < text.length(); i++) {
+            // the String.hashCode of text.substring(0, i + 1)
+            hash = 31 * hash + text.charAt(i);
+            List<String> keys = byHash.get(hash);
+            if (keys == null) {
+                continue;
+            }
+            for (String key : keys) {
+                if (key.length() == i + 1 && text.startsWith(key)) {
+                    longest = key;
+                }
+            }
+        }
+        return longest;
+    }
+
+    private float[] step(int idx) {
+        return sampler.copy(model.rnnTimeStep(input.set(idx)));
+    }
+
+    private void checkParameters() {
+        if (model.getIterationCount() != iterationCount) {
+            clear();
+            iterationCount = model.getIterationCount();
+        }
+    }
+
+    private void remember(String text, float[] output) {
+        Map<Integer, Map<String, INDArray>> state = new HashMap<>();
+        long bytes = 0;
+        Layer[] layers = model.getLayers();
+        for (int i = 0; i < layers.length; i++) {
+            if (!(layers[i] instanceof RecurrentLayer)) {
+                continue;
+            }
+            Map<String, INDArray> layerState = new HashMap<>();
+            for (Map.Entry<String, INDArray> e : model.rnnGetPreviousState(i).entrySet()) {
+                INDArray copy = e.getValue().dup();
+                layerState.put(e.getKey(), copy);
+                bytes += copy.length() * copy.data().getElementSize();
+            }
+            state.put(i, layerState);
+        }
+        Snapshot old = cache.put(text, new Snapshot(state, output.clone(), bytes));
+        cachedBytes += bytes - (old == null ? 0 : old.bytes);
+        if (old == null) {
+            byHash.computeIfAbsent(text.hashCode(), h -> new ArrayList<>(1)).add(text);
+        }
+        Iterator<Map.Entry<String, Snapshot>> lru = cache.entrySet().iterator();
+        while (cachedBytes > budgetBytes && lru.hasNext()) {
+            Map.Entry<String, Snapshot> eldest = lru.next();
+            cachedBytes -= eldest.getValue().bytes;
+            lru.remove();
+            unindex(eldest.getKey());
+        }
+    }
+
+    private void unindex(String text) {
+        List<String> keys = byHash.get(text.hashCode());
+        keys.remove(text);
+        if (keys.isEmpty()) {
+            byHash.remove(text.hashCode());
+        }
+    }
+
+    private void restore(Snapshot snapshot) {
+        for (Map.Entry<Integer, Map<String, INDArray>> layer : snapshot.state.entrySet()) {
+            // rnnTimeStep must not write into the cached arrays
+            Map<String, INDArray> state = new HashMap<>();
+            for (Map.Entry<String, INDArray> e : layer.getValue().entrySet()) {
+                state.put(e.getKey(), e.getValue().dup());
+            }
+            model.rnnSetPreviousState(layer.getKey(), state);
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        byHash.clear();
+        cachedBytes = 0;
+    }
+
+    public synchronized String report() {
+        return String.format("%d requests, %d cached states (%.1f kB), %d chars resumed from cache, %d chars replayed",
+                requests, cache.size(), cachedBytes / 1024.0, resumedChars, replayedChars);
+    }
+}
@@ -1,8 +1,15 @@
 package lstm;
 
+import common.AsyncCheckpointer;
+import common.MappedModel;
+import common.MemoryProfile;
+import common.QuantizedModel;
+import common.NeuralNetRunner;
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
 import org.deeplearning4j.nn.conf.BackpropType;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer;
 import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
@@ -11,17 +18,20 @@ import org.deeplearning4j.optimize.listeners.ComposableIterationListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.lossfunctions.impl.LossSparseMCXENT;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.Map;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
 import java.util.stream.Collectors;
 
 public class LSTMGenerator {
@@ -29,12 +39,65 @@ public class LSTMGenerator {
     private static final int SEQ_LEN = 32;
     private static final String LSTM_MODEL = "C:\\temp\\lstm.model";
     private static final String SHAKESPEAREMODEL = "C:\\temp\\shakespearemodel\\";
+    // FP32 minibatch size, doubled with -DLSTMGenerator.precision=MIXED
     private static final int BATCH_SIZE = 100;
+    // minibatches to train on; with tBPTT one minibatch is several iterations
+    private static final long TRAINING_BATCHES = 10000;
+    // SEQUENTIAL_LANES (-DLSTMGenerator.order) trains each lane in segments of SEGMENT_LEN chars
+    private static final CharIterator.Order ORDER =
+            CharIterator.Order.valueOf(System.getProperty("LSTMGenerator.order", "RANDOM_WINDOWS"));
+    private static final int SEGMENT_LEN = 1000;
+    // INDEX feeds class indices into an embedding layer instead of one-hot vectors
+    private static final CharIterator.Encoding ENCODING = CharIterator.Encoding.INDEX;
+    private static final int EMBEDDING_SIZE = 64;
+    private static final int PREFETCH_WORKERS = 2;
+    private static final int PREFETCH_QUEUE = 8;
+    // sampling: 1 / 0 / 1 samples from the plain softmax distribution
+    private static final double TEMPERATURE = 1.0;
+    private static final int TOP_K = 0;
+    private static final double TOP_P = 1.0;
+    // preview text while training: length and share of wall clock time (-DLSTMGenerator.previewBudget)
+    private static final int PREVIEW_LENGTH = 100;
+    private static final double PREVIEW_BUDGET =
+            Double.parseDouble(System.getProperty("LSTMGenerator.previewBudget", "0.1"));
+    // RNN states kept for resuming generation from a known prompt
+    private static final long SESSION_CACHE_BYTES = 16 << 20;
     private static Logger log = LoggerFactory.getLogger(LSTMGenerator.class);
+    // only opened for training, generation decodes with the vocabulary saved next to the model
     private CharIterator charIterator;
+    private CharVocabulary vocabulary;
+    private GenerationSessions sessions;
 
-    public LSTMGenerator() {
-        charIterator = new CharIterator("C:\\temp\\shakespeare.txt", SEQ_LEN, BATCH_SIZE);
+    /**
+     * A single text file is mapped, a directory of shards is streamed. Several training
+     * processes split the shards with -DLSTMGenerator.shard=i -DLSTMGenerator.shards=n.
+     */
+    static CharCorpus openCorpus() {
+        File text = corpusFile();
+        if (text.isDirectory()) {
+            return StreamingCharCorpus.open(text, Integer.getInteger("LSTMGenerator.shard", 0),
+                    Integer.getInteger("LSTMGenerator.shards", 1));
+        }
+        return MappedCharCorpus.open(text);
+    }
+
+    private static File corpusFile() {
+        return new File(System.getProperty("LSTMGenerator.corpus", "C:\\temp\\shakespeare.txt"));
+    }
+
+    /**
+     * The vocabulary of a model saved without one. Those models were trained on a single
+     * text with the chars indexed in order of first appearance, not by frequency like the
+     * corpora index them now.
+     */
+    private static CharVocabulary legacyVocabulary() {
+        File text = corpusFile();
+        if (text.isDirectory()) {
+            throw new IllegalStateException("No vocabulary saved with " + LSTM_MODEL + " and none can be rebuilt from the"
+                    + " shard directory " + text + "; restore once with -DLSTMGenerator.corpus=<the text file the"
+                    + " model was trained on>, which writes " + CharVocabulary.fileFor(new File(LSTM_MODEL)));
+        }
+        return CharVocabulary.inAppearanceOrder(text);
     }
 
     public static void main(String[] args) throws Exception {
@@ -42,115 +105,191 @@ public class LSTMGenerator {
     }
 
     private void run(boolean train, boolean restore, int samplesize, String initializer) throws Exception {
-        MultiLayerNetwork model = restore ? restoreModel() : createModel();
+        MultiLayerNetwork model = null;
+        if (restore) {
+            model = restoreModel(train);
+            vocabulary = CharVocabulary.load(CharVocabulary.fileFor(new File(LSTM_MODEL)), LSTMGenerator::legacyVocabulary);
+        }
         if (train) {
-            trainNet(model, charIterator);
-            model.save(new File(LSTM_MODEL));
+            // a checkpoint of an interrupted run takes precedence over a fresh model
+            AsyncCheckpointer.Checkpoint checkpoint = restore
+                    ? null : AsyncCheckpointer.latest(AsyncCheckpointer.defaultDirectory(), "lstm");
+            if (checkpoint != null) {
+                model = checkpoint.model();
+            }
+            int seqLen = ORDER == CharIterator.Order.SEQUENTIAL_LANES ? SEGMENT_LEN : SEQ_LEN;
+            NeuralNetRunner runner = NeuralNetRunner.forTrainer(LSTMGenerator.class);
+            charIterator = new CharIterator(openCorpus(), seqLen, runner.batchSize(BATCH_SIZE), ENCODING, ORDER);
+            if (vocabulary != null && !vocabulary.sameAs(charIterator.getVocabulary())) {
+                throw new IllegalStateException("The corpus vocabulary differs from the one the model was trained with");
+            }
+            vocabulary = charIterator.getVocabulary();
+            if (model == null) {
+                model = createModel();
+            }
+            MemoryProfile.forTrainer(LSTMGenerator.class, MemoryProfile.TRAINING).apply(model);
+            long batchesDone = checkpoint == null ? 0 : Long.parseLong(checkpoint.state().getProperty("batches", "0"));
+            try (CharBatchPrefetcher prefetcher = new CharBatchPrefetcher(charIterator, PREFETCH_WORKERS, PREFETCH_QUEUE);
+                 AsyncCheckpointer checkpointer = AsyncCheckpointer.forTrainer("lstm", () -> {
+                     Properties state = new Properties();
+                     state.setProperty("batch", String.valueOf(prefetcher.position()));
+                     state.setProperty("batches", String.valueOf(batchesDone + prefetcher.taken()));
+                     return state;
+                 })) {
+                if (checkpoint != null) {
+                    prefetcher.seek(Long.parseLong(checkpoint.state().getProperty("batch")));
+                }
+                trainNet(model, prefetcher, checkpointer, runner, TRAINING_BATCHES - batchesDone);
+                log.info(prefetcher.occupancyReport());
+                model.save(new File(LSTM_MODEL));
+                MappedModel.save(model, new File(LSTM_MODEL + ".mapped"));
+                vocabulary.save(CharVocabulary.fileFor(new File(LSTM_MODEL)));
+                checkpointer.discard();
+            }
+            if (Boolean.getBoolean("LSTMGenerator.int8")) {
+                saveQuantized(model);
+            }
         }
+        MemoryProfile.GENERATION.apply(model);
         System.out.println(generateText(model, samplesize, initializer));
+        generateTexts(model, samplesize / 10, Arrays.asList(initializer, "Romeo", "Juliet"))
+                .forEach(System.out::println);
+        log.info(sessions.report());
     }
 
-    private MultiLayerNetwork restoreModel() throws Exception {
+    private MultiLayerNetwork restoreModel(boolean forTraining) throws Exception {
         // or load from checkpoint
         //String modelFile = CheckpointListener.lastCheckpoint(new File(SHAKESPEAREMODEL)).getFilename();
         //MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(new File(SHAKESPEAREMODEL + modelFile));
+        File int8 = new File(LSTM_MODEL + ".int8");
+        if (!forTraining && Boolean.getBoolean("LSTMGenerator.int8") && int8.isFile()) {
+            return QuantizedModel.load(int8).toNetwork(DataType.valueOf(System.getProperty("LSTMGenerator.dataType", "FLOAT")));
+        }
+        File mapped = new File(LSTM_MODEL + ".mapped");
+        if (!forTraining && mapped.isFile()) {
+            // no updater state, but ready without unzipping and copying the parameters
+            return MappedModel.load(mapped);
+        }
         return ModelSerializer.restoreMultiLayerNetwork(new File(LSTM_MODEL));
     }
 
-    private String generateText(MultiLayerNetwork model, int sampleSize, String initializer) {
-
-        Map<Integer, Integer> charToIdx = charIterator.getCharToIdx();
-        Map<Integer, Integer> idxToChar = charToIdx.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
-        warmUpNet(model, initializer, charToIdx);
-
-        StringBuilder sampleText = sampleText(model, sampleSize, idxToChar, charToIdx);
-        System.out.println(sampleText.toString());
-
-        return sampleText.toString();
+    /**
+     * With -DLSTMGenerator.int8=true: writes the int8 model used for generation, calibrated
+     * on a few batches drawn after training, and logs its drift from the FP32 model on a
+     * few others.
+     */
+    private void saveQuantized(MultiLayerNetwork model) {
+        List<INDArray> calibration = new ArrayList<>();
+        List<DataSet> check = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            calibration.add(charIterator.next().getFeatures());
+            check.add(charIterator.next());
+        }
+        QuantizedModel quantized = QuantizedModel.calibrate(model, calibration);
+        quantized.save(new File(LSTM_MODEL + ".int8"));
+        log.info(quantized.sizeReport());
+        log.info(QuantizedModel.driftReport(model, quantized.toNetwork(DataType.FLOAT), new ListDataSetIterator<>(check)));
     }
 
-    private StringBuilder sampleText(MultiLayerNetwork model, int sampleSize, Map<Integer, Integer> idxToChar,
-                                     Map<Integer, Integer> charToIdx) {
-        Random r = new Random(34352442);
-        StringBuilder sampleText = new StringBuilder();
-        INDArray input = getInput(' ', idxToChar);
-        INDArray output;
-        //model.rnnClearPreviousState();
-        for (int s = 0; s < sampleSize; s++) {
-            output = model.rnnTimeStep(input);
-            int nextChar = sampleCharBasedOnOutputProb(output, r, idxToChar);
-            input = getInput((char) nextChar, charToIdx);
-            sampleText.append((char) nextChar);
+    /**
+     * Generates one text per prompt, all prompts advancing together in one batch.
+     */
+    private List<String> generateTexts(MultiLayerNetwork model, int sampleSize, List<String> prompts) {
+        BatchedTextGenerator generator = new BatchedTextGenerator(model, vocabulary);
+        List<BatchedTextGenerator.Stream> streams = new ArrayList<>();
+        for (int i = 0; i < prompts.size(); i++) {
+            streams.add(generator.submit(prompts.get(i), sampleSize, '\0', 34352442 + i));
         }
-        return sampleText;
+        generator.runUntilIdle();
+        return streams.stream().map(s -> s.result().join()).collect(Collectors.toList());
     }
 
-
-    private void warmUpNet(MultiLayerNetwork model, String initializer, Map<Integer, Integer> charToIdx) {
-        INDArray output = null;
-        for (char c : initializer.toCharArray()) {
-            INDArray input = getInput(c, charToIdx);
-            model.rnnTimeStep(input);
+    /**
+     * Generates after the initializer; the RNN state after the initializer is cached, so
+     * repeated calls with the same start skip the warm up.
+     */
+    private String generateText(MultiLayerNetwork model, int sampleSize, String initializer) {
+        if (sessions == null) {
+            sessions = new GenerationSessions(model, vocabulary, SESSION_CACHE_BYTES, TEMPERATURE, TOP_K, TOP_P);
         }
+        String sampleText = sessions.complete(initializer, sampleSize, 34352442);
+        System.out.println(sampleText);
+        return sampleText;
     }
 
 
-    private INDArray getInput(char c, Map<Integer, Integer> charToIdx) {
-        INDArray input = Nd4j.zeros(new int[]{1, charToIdx.size()});
-        int oneHot = charToIdx.get((int) c);
-        input.putScalar(new int[]{0, oneHot}, 1f);
-        return input;
-    }
-
-    private int sampleCharBasedOnOutputProb(INDArray output, Random r, Map<Integer, Integer> indexToChar) {
-        double randomProb = r.nextDouble();
-        double probSum = 0;
-        for (int i = 0; i < indexToChar.size(); i++) {
-            double probOfI = output.getDouble(new int[]{0, i});
-            probSum += probOfI;
-            if (probSum > randomProb) {
-                return indexToChar.get(i);
-            }
-        }
-        return indexToChar.get(indexToChar.size() - 1);
+    static boolean isIndexInput(MultiLayerNetwork model) {
+        return model.getLayerWiseConfigurations().getConf(0).getLayer() instanceof EmbeddingSequenceLayer;
     }
 
 
-    private void trainNet(MultiLayerNetwork model, DataSetIterator charIterator) {
+    private void trainNet(MultiLayerNetwork model, CharBatchPrefetcher charIterator, AsyncCheckpointer checkpointer,
+                          NeuralNetRunner runner, long batches) {
         log.info("Train model....");
         //createUiServer(model);
-        //CheckpointListener checkPoint = new CheckpointListener.Builder(new File("C:\\temp\\shakespearemodel2\\")).saveEveryNIterations(1000).build();
-        model.setListeners(new ComposableIterationListener(new ScoreIterationListener(10)));
-        for (int i = 0; i < 10000; i++) {
-            model.fit(charIterator.next());
-            if (i % 10 == 0) {
-                generateText(model, 100, "");
+        model.setListeners(new ComposableIterationListener(new ScoreIterationListener(10)), checkpointer);
+        if (runner.isParallel()) {
+            // the workers pull batches themselves, no interleaved sample text
+            runner.fitIterations(model, charIterator, (int) batches);
+            return;
+        }
+        try (TrainingPreview preview = new TrainingPreview(model, vocabulary, PREVIEW_LENGTH, PREVIEW_BUDGET,
+                TEMPERATURE, TOP_K, TOP_P)) {
+            for (long i = 0; i < batches; i++) {
+                if (!charIterator.hasNext()) {
+                    charIterator.reset();
+                }
+                runner.fit(model, charIterator.next());
+                preview.offer();
+                if (i % 1000 == 0) {
+                    log.info(charIterator.occupancyReport());
+                    log.info(preview.report());
+                }
             }
         }
     }
 
 
     private MultiLayerNetwork createModel() {
-        int numberOfCharClasses = charIterator.getCharToIdx().size();
-        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+        return createModel(vocabulary.size(), charIterator.getEncoding());
+    }
+
+    public static MultiLayerNetwork createModel(int numberOfCharClasses, CharIterator.Encoding encoding) {
+        MultiLayerNetwork model = new MultiLayerNetwork(createConf(numberOfCharClasses, encoding, 0.005, 512));
+        model.init();
+        return model;
+    }
+
+    /**
+     * The configuration with the given Adam learning rate and units per LSTM layer; see LSTMSearch.
+     */
+    static MultiLayerConfiguration createConf(int numberOfCharClasses, CharIterator.Encoding encoding,
+                                              double learningRate, int layerSize) {
+        NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
                 .seed(12345)
-                .updater(new Adam(0.005))
+                .updater(new Adam(learningRate))
                 .l2(0.0001)
                 .weightInit(WeightInit.XAVIER)
-                .list()
-                .layer(new LSTM.Builder().nIn(numberOfCharClasses).nOut(512)
-                        .activation(Activation.TANH).build())
-                .layer(new LSTM.Builder().nIn(512).nOut(512)
+                .list();
+        if (encoding == CharIterator.Encoding.INDEX) {
+            // embedding lookup replaces the one-hot matmul, labels are class indices as well
+            builder.layer(new EmbeddingSequenceLayer.Builder().nIn(numberOfCharClasses).nOut(EMBEDDING_SIZE).build())
+                    .layer(new LSTM.Builder().nIn(EMBEDDING_SIZE).nOut(layerSize)
+                            .activation(Activation.TANH).build());
+        } else {
+            builder.layer(new LSTM.Builder().nIn(numberOfCharClasses).nOut(layerSize)
+                    .activation(Activation.TANH).build());
+        }
+        return builder
+                .layer(new LSTM.Builder().nIn(layerSize).nOut(layerSize)
                         .activation(Activation.TANH).build())
                 .layer(new RnnOutputLayer.Builder().activation(Activation.SOFTMAX)
-                        .lossFunction(LossFunctions.LossFunction.MCXENT).nIn(512).nOut(numberOfCharClasses).build())
+                        .lossFunction(encoding == CharIterator.Encoding.INDEX
+                                ? new LossSparseMCXENT() : LossFunctions.LossFunction.MCXENT.getILossFunction())
+                        .nIn(layerSize).nOut(numberOfCharClasses).build())
                 .backpropType(BackpropType.TruncatedBPTT)
                 .tBPTTLength(50)
                 .build();
-
-        MultiLayerNetwork model = new MultiLayerNetwork(conf);
-        model.init();
-        return model;
     }
 
 
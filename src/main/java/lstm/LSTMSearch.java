@@ -0,0 +1,50 @@
+package lstm;
+
+import common.HyperparameterSearch;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.arbiter.optimize.api.ParameterSpace;
+import org.deeplearning4j.arbiter.optimize.parameter.continuous.ContinuousParameterSpace;
+import org.deeplearning4j.arbiter.optimize.parameter.discrete.DiscreteParameterSpace;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Searches the generator's Adam learning rate (10^x) and LSTM layer size with successive
+ * halving: 9 candidates on random windows of the LSTMGenerator corpus, 100 iterations
+ * in the first rung, a third of them continuing with three times as many. The search
+ * lives in java.io.tmpdir/search-lstm and resumes from there. The budget is set with
+ * -DLSTMSearch.cores and -DLSTMSearch.memoryMB (default: all cores, the JavaCPP
+ * off-heap limit).
+ */
+public class LSTMSearch {
+
+    private static final int SEQ_LEN = 32;
+    private static final int BATCH_SIZE = 100;
+    private static Logger log = LoggerFactory.getLogger(LSTMSearch.class);
+
+    public static void main(String[] args) throws Exception {
+        CharCorpus corpus = LSTMGenerator.openCorpus();
+        int vocabularySize = corpus.vocabulary().size();
+
+        Map<String, ParameterSpace<?>> space = new LinkedHashMap<>();
+        space.put("learningRateLog10", new ContinuousParameterSpace(-3.3, -1.7));
+        space.put("layerSize", new DiscreteParameterSpace<>(256, 512, 768));
+
+        HyperparameterSearch search = new HyperparameterSearch(
+                new File(System.getProperty("java.io.tmpdir"), "search-lstm"), space,
+                values -> LSTMGenerator.createConf(vocabularySize, CharIterator.Encoding.INDEX,
+                        Math.pow(10, (Double) values.get("learningRateLog10")), (Integer) values.get("layerSize")),
+                () -> new CharIterator(corpus, SEQ_LEN, BATCH_SIZE, CharIterator.Encoding.INDEX,
+                        CharIterator.Order.RANDOM_WINDOWS),
+                InputType.recurrent(1, SEQ_LEN), BATCH_SIZE);
+        int cores = Integer.getInteger("LSTMSearch.cores", Runtime.getRuntime().availableProcessors());
+        long memoryBytes = Long.getLong("LSTMSearch.memoryMB", Pointer.maxBytes() >> 20) << 20;
+        HyperparameterSearch.Candidate best = search.run(9, 100, 2700, 3, cores, memoryBytes, 42);
+        log.info("Best: " + best);
+    }
+}
@@ -0,0 +1,166 @@
+package lstm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Corpus backed by a memory mapped index file. The text is encoded once into
+ * "&lt;text&gt;.idx" (one byte per symbol if the vocabulary fits, two bytes otherwise)
+ * and later runs just map that file, so opening is cheap and no text lives on the heap.
+ * <p>
+ * File layout: header (magic, version, source length + timestamp, symbol count,
+ * symbol width, vocabulary) padded to 8 bytes, followed by the symbol stream.
+ */
+class MappedCharCorpus implements RandomAccessCharCorpus {
+
+    private static final int MAGIC = 0x43494458; // "CIDX"
+    private static final int VERSION = 1;
+    // symbols per mapped segment, keeps every segment below the 2 GB mapping limit
+    private static final int SEGMENT_SHIFT = 29;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final CharVocabulary vocabulary;
+    private final long length;
+    private final int symbolWidth;
+    private final MappedByteBuffer[] segments;
+
+    private MappedCharCorpus(CharVocabulary vocabulary, long length, int symbolWidth, MappedByteBuffer[] segments) {
+        this.vocabulary = vocabulary;
+        this.length = length;
+        this.symbolWidth = symbolWidth;
+        this.segments = segments;
+    }
+
+    /**
+     * Maps the index file of the given text, encoding it first if it is missing or outdated.
+     */
+    static MappedCharCorpus open(File textFile) {
+        File indexFile = new File(textFile.getPath() + ".idx");
+        try {
+            if (!isUpToDate(indexFile, textFile)) {
+                encode(textFile, indexFile);
+            }
+            return map(indexFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isUpToDate(File indexFile, File textFile) throws IOException {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            return in.readInt() == MAGIC
+                    && in.readInt() == VERSION
+                    && in.readLong() == textFile.length()
+                    && in.readLong() == textFile.lastModified();
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static void encode(File textFile, File indexFile) throws IOException {
+        // first pass: parallel char count, the most frequent chars get the smallest indices
+        long[] counts = CharCounts.count(Collections.singletonList(textFile));
+        CharVocabulary vocabulary = CharVocabulary.fromCounts(counts, true);
+        long count = Arrays.stream(counts).sum();
+        char[] buffer = new char[1 << 16];
+        int symbolWidth = vocabulary.size() <= 256 ? 1 : 2;
+
+        // second pass: write the index stream to a temp file and move it in place
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (Reader reader = new InputStreamReader(new FileInputStream(textFile), StandardCharsets.UTF_8);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            char[] chars = vocabulary.toCharArray();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(textFile.length());
+            out.writeLong(textFile.lastModified());
+            out.writeLong(count);
+            out.writeInt(symbolWidth);
+            out.writeInt(chars.length);
+            for (char c : chars) {
+                out.writeChar(c);
+            }
+            for (int i = headerSize(chars.length) - out.size(); i > 0; i--) {
+                out.writeByte(0);
+            }
+
+            byte[] bytes = new byte[buffer.length * symbolWidth];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                int b = 0;
+                for (int i = 0; i < n; i++) {
+                    int idx = vocabulary.indexOf(buffer[i]);
+                    if (symbolWidth == 2) {
+                        bytes[b++] = (byte) (idx >>> 8);
+                    }
+                    bytes[b++] = (byte) idx;
+                }
+                out.write(bytes, 0, b);
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Encoded " + count + " chars of " + textFile + " into " + indexFile);
+    }
+
+    private static int headerSize(int vocabSize) {
+        int size = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 2 * vocabSize;
+        return (size + 7) & ~7;
+    }
+
+    private static MappedCharCorpus map(File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(40);
+            channel.read(header, 0);
+            header.flip();
+            header.position(24);
+            long count = header.getLong();
+            int symbolWidth = header.getInt();
+            int vocabSize = header.getInt();
+
+            ByteBuffer vocab = ByteBuffer.allocate(2 * vocabSize);
+            channel.read(vocab, 40);
+            vocab.flip();
+            char[] chars = new char[vocabSize];
+            vocab.asCharBuffer().get(chars);
+
+            long dataStart = headerSize(vocabSize);
+            int segmentCount = (int) ((count + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int s = 0; s < segmentCount; s++) {
+                long first = (long) s << SEGMENT_SHIFT;
+                long symbols = Math.min(count - first, 1L << SEGMENT_SHIFT);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataStart + first * symbolWidth, symbols * symbolWidth);
+            }
+            return new MappedCharCorpus(new CharVocabulary(chars), count, symbolWidth, segments);
+        }
+    }
+
+    @Override
+    public CharVocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int indexAt(long pos) {
+        MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+        int offset = (int) (pos & SEGMENT_MASK);
+        return symbolWidth == 1 ? segment.get(offset) & 0xFF : segment.getChar(offset << 1);
+    }
+}
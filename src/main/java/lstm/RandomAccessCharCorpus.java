@@ -0,0 +1,31 @@
+package lstm;
+
+import java.util.Random;
+
+/**
+ * Corpus of known length with random access to every symbol, needed for sequential
+ * lanes.
+ */
+interface RandomAccessCharCorpus extends CharCorpus {
+
+    /**
+     * Number of symbols in the corpus.
+     */
+    long length();
+
+    /**
+     * Vocabulary index of the symbol at the given position.
+     */
+    int indexAt(long pos);
+
+    default void read(long pos, int[] dst, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[off + i] = indexAt(pos + i);
+        }
+    }
+
+    @Override
+    default RandomAccessCharCorpus region(Random random) {
+        return this;
+    }
+}
@@ -0,0 +1,221 @@
+package lstm;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Corpus streamed from a directory of text shards, for texts that do not fit into
+ * memory or a single file. A background thread reads the shards of this worker
+ * sequentially as one endless stream, cut into fixed size chunks of vocabulary
+ * indices, and keeps a reservoir of the most recent chunks. Windows are drawn from a
+ * random chunk of the reservoir, so memory is bounded by chunkSize * chunks however
+ * large the corpus is.
+ * <p>
+ * Shards are sorted by name and worker w of n gets every shard i with i % n == w;
+ * each pass over them visits the shards in an order shuffled with the seed and the
+ * pass number. Training never waits for I/O: after every windowsPerRefill drawn
+ * windows the reader may replace the oldest chunk, if it is behind, older chunks are
+ * simply sampled a little more often. Batches therefore depend on the reader timing
+ * and are not reproducible from the batch index like with the random access corpora.
+ */
+class StreamingCharCorpus implements CharCorpus, AutoCloseable {
+
+    private final CharVocabulary vocabulary;
+    private final List<File> shards;
+    private final int chunkSize;
+    private final int windowsPerRefill;
+    private final long seed;
+    private final AtomicReferenceArray<ArrayCharCorpus> reservoir;
+    private final AtomicLong windows = new AtomicLong();
+    private final Semaphore refills = new Semaphore(0);
+    private final CountDownLatch filled;
+    private final Thread reader;
+    private volatile Throwable failure;
+
+    StreamingCharCorpus(File directory, CharVocabulary vocabulary, int worker, int workerCount,
+                        int chunkSize, int chunks, int windowsPerRefill, long seed) {
+        this.vocabulary = vocabulary;
+        this.chunkSize = chunkSize;
+        this.windowsPerRefill = windowsPerRefill;
+        this.seed = seed;
+        List<File> all = listShards(directory);
+        shards = new ArrayList<>();
+        for (int i = worker; i < all.size(); i += workerCount) {
+            shards.add(all.get(i));
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards for worker " + worker + " of " + workerCount + " in " + directory);
+        }
+        reservoir = new AtomicReferenceArray<>(chunks);
+        filled = new CountDownLatch(chunks);
+        reader = new Thread(this::readShards, "corpus-reader-" + worker);
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            filled.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+        System.out.println("Streaming " + shards.size() + " of " + all.size() + " shards in " + directory
+                + " (worker " + worker + " of " + workerCount + ")");
+    }
+
+    /**
+     * Streams the shards of the given worker with the vocabulary of all shards,
+     * 16 chunks of 4M chars are kept in memory.
+     */
+    static StreamingCharCorpus open(File directory, int worker, int workerCount) {
+        return new StreamingCharCorpus(directory, vocabularyFor(directory), worker, workerCount,
+                1 << 22, 16, 64, 123456789);
+    }
+
+    /**
+     * The vocabulary of all shards, saved next to the directory as "&lt;directory&gt;.vocab"
+     * so later runs do not scan the whole corpus. A manifest ("&lt;directory&gt;.vocab.shards")
+     * records the name, size and modification time of every shard it was scanned from;
+     * if any shard was added, removed or changed, the shards are scanned again.
+     */
+    static CharVocabulary vocabularyFor(File directory) {
+        List<File> shards = listShards(directory);
+        File file = CharVocabulary.fileFor(directory.getAbsoluteFile());
+        File manifestFile = new File(file.getPath() + ".shards");
+        Properties manifest = manifest(shards);
+        try {
+            if (file.isFile() && manifestFile.isFile()) {
+                Properties saved = new Properties();
+                try (InputStream in = new FileInputStream(manifestFile)) {
+                    saved.load(in);
+                }
+                if (saved.equals(manifest)) {
+                    return CharVocabulary.load(file);
+                }
+            }
+            CharVocabulary vocabulary = scanVocabulary(shards);
+            // workers may scan at the same time, each writes its own temp files
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            vocabulary.save(tmp);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = File.createTempFile(manifestFile.getName(), ".tmp", file.getParentFile());
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                manifest.store(out, null);
+            }
+            Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return vocabulary;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Properties manifest(List<File> shards) {
+        Properties manifest = new Properties();
+        for (File shard : shards) {
+            manifest.setProperty(shard.getName(), shard.length() + "," + shard.lastModified());
+        }
+        return manifest;
+    }
+
+    static List<File> listShards(File directory) {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Vocabulary of all shards, so every worker uses the same indices.
+     */
+    static CharVocabulary scanVocabulary(List<File> shards) {
+        return CharVocabulary.fromCounts(CharCounts.count(shards), true);
+    }
+
+    private void readShards() {
+        char[] buffer = new char[1 << 16];
+        char[] chunk = new char[chunkSize];
+        int fill = 0;
+        int slot = 0;
+        boolean empty = true;
+        try {
+            for (int pass = 0; !Thread.currentThread().isInterrupted(); pass++) {
+                List<File> order = new ArrayList<>(shards);
+                Collections.shuffle(order, new Random(seed + pass));
+                for (File shard : order) {
+                    try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(shard),
+                            StandardCharsets.UTF_8), 1 << 20)) {
+                        int n;
+                        while ((n = in.read(buffer)) != -1) {
+                            empty = false;
+                            for (int i = 0; i < n; i++) {
+                                chunk[fill++] = (char) vocabulary.indexOf(buffer[i]);
+                                if (fill == chunkSize) {
+                                    publish(slot, chunk);
+                                    slot = (slot + 1) % reservoir.length();
+                                    chunk = new char[chunkSize];
+                                    fill = 0;
+                                }
+                            }
+                        }
+                    }
+                }
+                if (empty) {
+                    throw new IOException("All shards are empty: " + shards);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException | RuntimeException e) {
+            // e.g. a char missing from the vocabulary; the constructor must not wait forever
+            // and training must not go on with a reservoir that is no longer refilled
+            failure = e;
+            while (filled.getCount() > 0) {
+                filled.countDown();
+            }
+        }
+    }
+
+    private void publish(int slot, char[] chunk) throws InterruptedException {
+        if (filled.getCount() == 0) {
+            refills.acquire();
+        }
+        reservoir.set(slot, new ArrayCharCorpus(chunk, chunk.length, vocabulary));
+        filled.countDown();
+    }
+
+    @Override
+    public RandomAccessCharCorpus region(Random random) {
+        if (failure != null) {
+            throw new IllegalStateException("Reading the shards failed", failure);
+        }
+        if (windows.incrementAndGet() % windowsPerRefill == 0) {
+            refills.release();
+        }
+        return reservoir.get(random.nextInt(reservoir.length()));
+    }
+
+    @Override
+    public CharVocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    @Override
+    public void close() {
+        reader.interrupt();
+    }
+}
@@ -0,0 +1,33 @@
+package lstm;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Single char input for rnnTimeStep, allocated once and updated in place: either a
+ * [1, vocab] one-hot row or a [1, 1, 1] class index for the embedding model.
+ */
+class TimeStepInput {
+
+    private final INDArray input;
+    private final boolean indexInput;
+    private int current = -1;
+
+    TimeStepInput(int vocabSize, boolean indexInput) {
+        this.indexInput = indexInput;
+        this.input = indexInput ? Nd4j.zeros(1, 1, 1) : Nd4j.zeros(1, vocabSize);
+    }
+
+    INDArray set(int idx) {
+        if (indexInput) {
+            input.putScalar(0, idx);
+        } else {
+            if (current >= 0) {
+                input.putScalar(current, 0);
+            }
+            input.putScalar(idx, 1);
+        }
+        current = idx;
+        return input;
+    }
+}
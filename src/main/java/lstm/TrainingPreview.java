@@ -0,0 +1,103 @@
+package lstm;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sample text while training without holding training up. The training thread offers
+ * the model after every iteration; when the preview thread is idle and its time budget
+ * allows, the parameters are copied into a separate inference copy of the network and
+ * the text is generated from that copy on the preview thread, so the trained model's
+ * RNN state is never touched and training only pays for the parameter copy.
+ * <p>
+ * The budget is the share of wall clock time the preview thread may spend generating:
+ * after a preview that took t, the next one starts no earlier than t * (1 / budget - 1)
+ * later. The preview thread shares the ND4J compute threads with training, so a smaller
+ * budget also means less contention.
+ */
+public class TrainingPreview implements AutoCloseable {
+
+    // the same seed every time, so previews of successive snapshots are comparable
+    private static final long SEED = 34352442;
+    private static Logger log = LoggerFactory.getLogger(TrainingPreview.class);
+
+    private final MultiLayerNetwork model;
+    private final MultiLayerNetwork snapshot;
+    private final GenerationSessions sessions;
+    private final int length;
+    private final double budget;
+    private final ExecutorService worker;
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private volatile long notBefore;
+    private long previews;
+    private long generatingNanos;
+
+    public TrainingPreview(MultiLayerNetwork model, CharVocabulary vocabulary, int length, double budget,
+                           double temperature, int topK, double topP) {
+        if (budget <= 0 || budget > 1) {
+            throw new IllegalArgumentException("budget must be in (0, 1]: " + budget);
+        }
+        this.model = model;
+        this.length = length;
+        this.budget = budget;
+        snapshot = new MultiLayerNetwork(model.getLayerWiseConfigurations().clone());
+        snapshot.init(model.params().dup(), false);
+        // no cache budget, every snapshot has a new iteration count and drops the cache anyway
+        sessions = new GenerationSessions(snapshot, vocabulary, 0, temperature, topK, topP);
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "training-preview");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Called by the training thread between iterations; starts a preview of the current
+     * parameters if the preview thread is idle and the budget allows, else returns at once.
+     */
+    public void offer() {
+        if (System.nanoTime() < notBefore || !busy.compareAndSet(false, true)) {
+            return;
+        }
+        int iteration = model.getIterationCount();
+        snapshot.params().assign(model.params());
+        snapshot.getLayerWiseConfigurations().setIterationCount(iteration);
+        worker.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                String text = sessions.complete("", length, SEED);
+                System.out.println("[iteration " + iteration + "] " + text);
+            } catch (RuntimeException e) {
+                log.warn("Preview failed", e);
+            } finally {
+                long took = System.nanoTime() - start;
+                synchronized (this) {
+                    previews++;
+                    generatingNanos += took;
+                }
+                notBefore = System.nanoTime() + (long) (took * (1 / budget - 1));
+                busy.set(false);
+            }
+        });
+    }
+
+    public synchronized String report() {
+        return String.format("%d previews, %.1f ms each", previews, previews == 0 ? 0 : generatingNanos / 1e6 / previews);
+    }
+
+    @Override
+    public void close() {
+        worker.shutdown();
+        try {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
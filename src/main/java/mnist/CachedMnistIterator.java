@@ -0,0 +1,230 @@
+package mnist;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * MNIST iterator over a {@link MnistCache} file. The file is mapped copy-on-write and
+ * wrapped as two INDArrays, so without shuffling every batch is a view of the mapped
+ * pages and an epoch copies nothing. With shuffling the examples are visited in a new
+ * random permutation each epoch and every batch is gathered with one pullRows call.
+ * Pinning copies the data into ND4J memory once instead of relying on the page cache.
+ * <p>
+ * The epoch and batch position can be saved with a checkpoint and sought to again; the
+ * permutations are replayed from the seed, so a resumed run sees the same batches.
+ */
+public class CachedMnistIterator implements DataSetIterator {
+
+    // keeps the mapping alive as long as the arrays viewing it
+    private final ByteBuffer mapping;
+    private final INDArray features;
+    private final INDArray labels;
+    private final int examples;
+    private final int batchSize;
+    private final boolean shuffle;
+    private final long seed;
+    private final Random random;
+    private final int[] order;
+    private int cursor = 0;
+    // reset() in the constructor starts epoch 0
+    private int epoch = -1;
+    private DataSetPreProcessor preProcessor;
+
+    public CachedMnistIterator(File cacheFile, int batchSize, boolean pin, boolean shuffle, long seed) throws IOException {
+        this.batchSize = batchSize;
+        this.shuffle = shuffle;
+        this.seed = seed;
+        this.random = new Random(seed);
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            // PRIVATE: a layer writing into its input must not crash on or change the file
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            mapping = mapped;
+            if (mapped.getInt(0) != MnistCache.MAGIC) {
+                throw new IOException("Not a MNIST cache file: " + cacheFile);
+            }
+            examples = mapped.getInt(8);
+            int featureSize = mapped.getInt(12);
+            int labelSize = mapped.getInt(16);
+            long labelsStart = MnistCache.HEADER_SIZE + 4L * examples * featureSize;
+            INDArray f = wrap(mapped, MnistCache.HEADER_SIZE, examples, featureSize);
+            INDArray l = wrap(mapped, labelsStart, examples, labelSize);
+            features = pin ? f.dup('c') : f;
+            labels = pin ? l.dup('c') : l;
+        }
+        order = new int[examples];
+        for (int i = 0; i < examples; i++) {
+            order[i] = i;
+        }
+        reset();
+    }
+
+    /**
+     * Train or test set from the default cache location, written on first use.
+     */
+    public static CachedMnistIterator open(boolean train, int batchSize, boolean shuffle) throws IOException {
+        return new CachedMnistIterator(MnistCache.get(train), batchSize, false, shuffle, 12345);
+    }
+
+    private static INDArray wrap(MappedByteBuffer mapped, long offset, int rows, int columns) {
+        mapped.position((int) offset);
+        ByteBuffer region = mapped.slice().order(ByteOrder.nativeOrder());
+        region.limit(4 * rows * columns);
+        DataBuffer buffer = Nd4j.createBuffer(region, DataType.FLOAT, rows * columns);
+        return Nd4j.create(buffer, new long[]{rows, columns});
+    }
+
+    @Override
+    public DataSet next(int num) {
+        int n = Math.min(num, examples - cursor);
+        DataSet dataSet;
+        if (shuffle) {
+            int[] rows = Arrays.copyOfRange(order, cursor, cursor + n);
+            dataSet = new DataSet(Nd4j.pullRows(features, 1, rows), Nd4j.pullRows(labels, 1, rows));
+        } else {
+            dataSet = new DataSet(features.get(NDArrayIndex.interval(cursor, cursor + n), NDArrayIndex.all()),
+                    labels.get(NDArrayIndex.interval(cursor, cursor + n), NDArrayIndex.all()));
+        }
+        cursor += n;
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < examples;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * The number of resets since the iterator was created.
+     */
+    public int epoch() {
+        return epoch;
+    }
+
+    /**
+     * Batches of the current epoch handed out so far.
+     */
+    public int position() {
+        return (cursor + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Batches handed out over all epochs.
+     */
+    public long totalPosition() {
+        return (long) epoch * ((examples + batchSize - 1) / batchSize) + position();
+    }
+
+    /**
+     * Continues with the given batch of the given epoch, in that epoch's order.
+     */
+    public void seek(int epoch, int batch) {
+        random.setSeed(seed);
+        for (int i = 0; i < examples; i++) {
+            order[i] = i;
+        }
+        this.epoch = -1;
+        for (int e = 0; e <= epoch; e++) {
+            reset();
+        }
+        cursor = (int) Math.min(examples, (long) batch * batchSize);
+    }
+
+    /**
+     * The position as checkpoint training state, see {@link #seek(Properties)}.
+     */
+    public Properties positionState() {
+        Properties state = new Properties();
+        state.setProperty("dataEpoch", String.valueOf(epoch));
+        state.setProperty("batch", String.valueOf(position()));
+        return state;
+    }
+
+    /**
+     * Seeks to the position saved with {@link #positionState()}; state without one starts over.
+     */
+    public void seek(Properties state) {
+        seek(Integer.parseInt(state.getProperty("dataEpoch", "0")), Integer.parseInt(state.getProperty("batch", "0")));
+    }
+
+    @Override
+    public void reset() {
+        cursor = 0;
+        epoch++;
+        if (shuffle) {
+            for (int i = examples - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+    }
+
+    @Override
+    public int inputColumns() {
+        return (int) features.size(1);
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return (int) labels.size(1);
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        // batches are views or a single gather, prefetching would only add a copy
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+    }
+}
@@ -0,0 +1,101 @@
+package mnist;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes batches of network output as grayscale PNGs, one image per row with values in
+ * [0, 1]. A batch is copied out of ND4J once into a float array; the workers fill the
+ * byte raster of each image directly and encode it. When the workers fall behind the
+ * caller encodes as well, so the queue stays bounded.
+ */
+class ImageExporter implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(ImageExporter.class);
+
+    private final File directory;
+    private final int width;
+    private final int height;
+    private final ThreadPoolExecutor workers;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicInteger failed = new AtomicInteger();
+    private long start;
+
+    ImageExporter(File directory, int width, int height, int threads) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(4 * threads), r -> {
+            Thread t = new Thread(r, "image-export-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queues the rows of the batch as prefix + (first + row) + ".png".
+     */
+    void export(String prefix, int first, INDArray batch) {
+        if (start == 0) {
+            start = System.nanoTime();
+        }
+        INDArray rows = batch.ordering() == 'c' && !batch.isView() ? batch : batch.dup('c');
+        float[] pixels = rows.data().asFloat();
+        int size = width * height;
+        for (int i = 0; i < (int) batch.size(0); i++) {
+            int offset = i * size;
+            String name = prefix + (first + i) + ".png";
+            workers.execute(() -> write(name, pixels, offset));
+        }
+    }
+
+    private void write(String name, float[] pixels, int offset) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] raster = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int p = 0; p < raster.length; p++) {
+            raster[p] = (byte) Math.max(0, Math.min(255, (int) (255 * pixels[offset + p])));
+        }
+        try {
+            ImageIO.write(image, "PNG", new File(directory, name));
+            written.incrementAndGet();
+        } catch (IOException e) {
+            if (failed.getAndIncrement() == 0) {
+                log.warn("Could not write " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the queued images and logs the throughput.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = start == 0 ? 0 : (System.nanoTime() - start) / 1e9;
+        log.info(String.format("Wrote %d images to %s in %.1f s, %.0f images/s%s", written.get(), directory,
+                seconds, seconds == 0 ? 0 : written.get() / seconds,
+                failed.get() == 0 ? "" : ", " + failed.get() + " failed"));
+    }
+}
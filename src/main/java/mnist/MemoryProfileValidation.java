@@ -0,0 +1,121 @@
+package mnist;
+
+import common.MemoryProfile;
+import lstm.CharIterator;
+import lstm.LSTMGenerator;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs a workload under a memory profile and logs what it costs in off-heap memory
+ * (JavaCPP total and physical bytes, sampled every 100 iterations) and in garbage
+ * collections. Workloads: fit trains the feed forward MNIST net, output runs its
+ * inference, generate steps the generator LSTM one char at a time. Each profile runs
+ * its own workload by default, DEFAULTS trains. Run one profile per JVM, GC and off-heap
+ * state carry over otherwise.
+ * Usage: MemoryProfileValidation PROFILE [fit|output|generate [iterations]]
+ */
+public class MemoryProfileValidation {
+
+    private static final int SAMPLE_EVERY = 100;
+    private static Logger log = LoggerFactory.getLogger(MemoryProfileValidation.class);
+
+    public static void main(String[] args) throws Exception {
+        MemoryProfile profile = MemoryProfile.valueOf(args.length > 0 ? args[0] : "TRAINING");
+        String workload = args.length > 1 ? args[1] : defaultWorkload(profile);
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        MultiLayerNetwork model;
+        if (workload.equals("generate")) {
+            model = LSTMGenerator.createModel(65, CharIterator.Encoding.INDEX);
+        } else {
+            model = MnistFeedForward.createNet();
+            model.init();
+        }
+        profile.apply(model);
+        // generate needs no MNIST data
+        DataSetIterator data = workload.equals("fit") || workload.equals("output")
+                ? CachedMnistIterator.open(workload.equals("fit"), 128, workload.equals("fit")) : null;
+        INDArray step = Nd4j.zeros(1, 1, 1);
+
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long offHeapStart = Pointer.totalBytes();
+        long offHeapPeak = offHeapStart;
+        long physicalPeak = Pointer.physicalBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            switch (workload) {
+                case "fit":
+                    if (!data.hasNext()) {
+                        data.reset();
+                    }
+                    model.fit(data.next());
+                    break;
+                case "output":
+                    if (!data.hasNext()) {
+                        data.reset();
+                    }
+                    model.output(data.next().getFeatures(), false);
+                    break;
+                case "generate":
+                    if (i % 1000 == 0) {
+                        model.rnnClearPreviousState();
+                    }
+                    model.rnnTimeStep(step);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload " + workload);
+            }
+            if (i % SAMPLE_EVERY == 0) {
+                offHeapPeak = Math.max(offHeapPeak, Pointer.totalBytes());
+                physicalPeak = Math.max(physicalPeak, Pointer.physicalBytes());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long collections = gcCount() - gcCount;
+        long pauseMillis = gcMillis() - gcMillis;
+        log.info(String.format("%s, %s: %d iterations in %.1f s (%.0f/s)", profile, workload, iterations, seconds,
+                iterations / seconds));
+        log.info(String.format("off-heap %.1f MB at start, %.1f MB peak, %.1f MB at end; physical peak %.1f MB",
+                offHeapStart / 1e6, offHeapPeak / 1e6, Pointer.totalBytes() / 1e6, physicalPeak / 1e6));
+        log.info(String.format("GC: %d collections, %d ms in total (%.1f%% of the run), %.1f ms on average",
+                collections, pauseMillis, 100 * pauseMillis / 1000.0 / seconds,
+                collections == 0 ? 0 : (double) pauseMillis / collections));
+    }
+
+    private static String defaultWorkload(MemoryProfile profile) {
+        switch (profile) {
+            case INFERENCE:
+                return "output";
+            case GENERATION:
+                return "generate";
+            default:
+                return "fit";
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -16,8 +16,13 @@
 
 package mnist;
 
+import common.AsyncCheckpointer;
+import common.MappedModel;
+import common.MemoryProfile;
+import common.NeuralNetRunner;
+import common.ParallelEvaluator;
+import common.TrainingTelemetry;
 import org.deeplearning4j.api.storage.StatsStorage;
-import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -47,6 +52,7 @@ import java.util.Map;
 
 public class MnistCNN {
 
+    public static final String MODEL = "C:\\temp\\cnn.model";
     private static Logger log = LoggerFactory.getLogger(MnistCNN.class);
 
     public static void main(String[] args) throws Exception {
@@ -54,34 +60,75 @@ public class MnistCNN {
     }
 
     private void run() throws Exception {
-        MultiLayerNetwork model = createNet();
-        model.init();
-
-        createUiServer(model);
+        // resuming restores the iteration count and with it the learning rate schedule position
+        AsyncCheckpointer.Checkpoint checkpoint = AsyncCheckpointer.latest(AsyncCheckpointer.defaultDirectory(), "cnn");
+        MultiLayerNetwork model;
+        if (checkpoint != null) {
+            model = checkpoint.model();
+        } else {
+            model = createNet();
+            model.init();
+        }
+        MemoryProfile.forTrainer(MnistCNN.class, MemoryProfile.TRAINING).apply(model);
+
+        //createUiServer(model);
         //print the score with every 1 iteration
         //model.setListeners(new ScoreIterationListener(1));
 
-        DataSetIterator mnistTrain = new MnistDataSetIterator(128, true, 12345);
-        trainNet(model, mnistTrain);
-
-        DataSetIterator mnistTest = new MnistDataSetIterator(128, false, 12345);
+        NeuralNetRunner runner = NeuralNetRunner.forTrainer(MnistCNN.class);
+        if (runner.isCompare()) {
+            runner.compareWithSingleWorker(() -> {
+                MultiLayerNetwork m = createNet();
+                m.init();
+                return m;
+            }, () -> CachedMnistIterator.open(true, runner.batchSize(128), true), 200);
+        }
+
+        CachedMnistIterator mnistTrain = CachedMnistIterator.open(true, runner.batchSize(128), true);
+        if (checkpoint != null) {
+            mnistTrain.seek(checkpoint.state());
+        }
+        try (TrainingTelemetry telemetry = TrainingTelemetry.forTrainer("cnn");
+             AsyncCheckpointer checkpointer = AsyncCheckpointer.forTrainer("cnn", mnistTrain::positionState)) {
+            model.addListeners(telemetry, checkpointer);
+            trainNet(model, mnistTrain, runner.withTelemetry(telemetry));
+            checkpointer.discard();
+        }
+
+        DataSetIterator mnistTest = CachedMnistIterator.open(false, 128, false);
         evaluateModel(model, mnistTest);
     }
 
     private void evaluateModel(MultiLayerNetwork model, DataSetIterator mnistTest) {
         log.info("Evaluate model....");
-        Evaluation eval = model.evaluate(mnistTest);
+        Evaluation eval;
+        try (ParallelEvaluator evaluator = new ParallelEvaluator(model, Runtime.getRuntime().availableProcessors())) {
+            eval = evaluator.evaluate(mnistTest, 20, partial ->
+                    log.info(String.format("%d examples evaluated, accuracy so far %.4f",
+                            partial.getConfusionMatrix().getTotal(), partial.accuracy())));
+        }
         log.info(eval.stats());
         log.info("****************Evaluate finished********************");
     }
 
-    private void trainNet(MultiLayerNetwork model, DataSetIterator mnistTrain) throws Exception {
+    private void trainNet(MultiLayerNetwork model, CachedMnistIterator mnistTrain, NeuralNetRunner runner) throws Exception {
         log.info("Train model....");
-        model.fit(mnistTrain, 10);
+        // a resumed epoch counts if batches are left, a finished one does not
+        runner.fit(model, mnistTrain, 10 - mnistTrain.epoch() - (mnistTrain.hasNext() ? 0 : 1));
+        model.save(new File(MODEL));
+        MappedModel.save(model, new File(MODEL + ".mapped"));
     }
 
 
-    private MultiLayerNetwork createNet() {
+    static MultiLayerNetwork createNet() {
+        return new MultiLayerNetwork(createConf(1.0, 0.0005, 500));
+    }
+
+    /**
+     * The configuration with the learning rate schedule scaled by learningRateScale, and
+     * the given l2 and size of the dense layer; see MnistCNNSearch.
+     */
+    static MultiLayerConfiguration createConf(double learningRateScale, double l2, int denseSize) {
         //number of rows and columns in the input pictures
         final int numRows = 28;
         final int numColumns = 28;
@@ -95,11 +142,12 @@ public class MnistCNN {
         learningRateSchedule.put(600, 0.028);
         learningRateSchedule.put(800, 0.0060);
         learningRateSchedule.put(1000, 0.001);
+        learningRateSchedule.replaceAll((iteration, rate) -> rate * learningRateScale);
 
         log.info("Build model....");
-        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+        return new NeuralNetConfiguration.Builder()
                 .seed(12345)
-                .l2(0.0005) // ridge regression value
+                .l2(l2) // ridge regression value
                 .updater(new Nesterovs(new MapSchedule(ScheduleType.ITERATION, learningRateSchedule)))
                 .weightInit(WeightInit.XAVIER)
                 .list()
@@ -123,7 +171,7 @@ public class MnistCNN {
                         .stride(2, 2)
                         .build())
                 .layer(new DenseLayer.Builder().activation(Activation.RELU)
-                        .nOut(500)
+                        .nOut(denseSize)
                         .build())
                 .layer(new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
                         .nOut(outputNum)
@@ -131,8 +179,6 @@ public class MnistCNN {
                         .build())
                 .setInputType(InputType.convolutionalFlat(28, 28, 1)) // InputType.convolutional for normal image
                 .build();
-
-        return new MultiLayerNetwork(conf);
     }
 
     private void createUiServer(MultiLayerNetwork model) {
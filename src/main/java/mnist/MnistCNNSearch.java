@@ -0,0 +1,46 @@
+package mnist;
+
+import common.HyperparameterSearch;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.arbiter.optimize.api.ParameterSpace;
+import org.deeplearning4j.arbiter.optimize.parameter.continuous.ContinuousParameterSpace;
+import org.deeplearning4j.arbiter.optimize.parameter.discrete.DiscreteParameterSpace;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Searches the MnistCNN learning rate schedule (scaled by 2^x), l2 and dense layer size
+ * with successive halving: 27 candidates, 100 iterations in the first rung, a third of
+ * them continuing with three times as many. The search lives in
+ * java.io.tmpdir/search-cnn and resumes from there. The budget is set with
+ * -DMnistCNNSearch.cores and -DMnistCNNSearch.memoryMB (default: all cores, the
+ * JavaCPP off-heap limit).
+ */
+public class MnistCNNSearch {
+
+    private static final int BATCH_SIZE = 128;
+    private static Logger log = LoggerFactory.getLogger(MnistCNNSearch.class);
+
+    public static void main(String[] args) throws Exception {
+        Map<String, ParameterSpace<?>> space = new LinkedHashMap<>();
+        space.put("learningRateScaleLog2", new ContinuousParameterSpace(-2, 2));
+        space.put("l2Log10", new ContinuousParameterSpace(-5, -2.5));
+        space.put("denseSize", new DiscreteParameterSpace<>(250, 500, 1000));
+
+        HyperparameterSearch search = new HyperparameterSearch(
+                new File(System.getProperty("java.io.tmpdir"), "search-cnn"), space,
+                values -> MnistCNN.createConf(Math.pow(2, (Double) values.get("learningRateScaleLog2")),
+                        Math.pow(10, (Double) values.get("l2Log10")), (Integer) values.get("denseSize")),
+                () -> CachedMnistIterator.open(true, BATCH_SIZE, true),
+                InputType.convolutionalFlat(28, 28, 1), BATCH_SIZE);
+        int cores = Integer.getInteger("MnistCNNSearch.cores", Runtime.getRuntime().availableProcessors());
+        long memoryBytes = Long.getLong("MnistCNNSearch.memoryMB", Pointer.maxBytes() >> 20) << 20;
+        HyperparameterSearch.Candidate best = search.run(27, 100, 2700, 3, cores, memoryBytes, 42);
+        log.info("Best: " + best);
+    }
+}
@@ -0,0 +1,119 @@
+package mnist;
+
+import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the normalised MNIST features and one-hot labels once into a flat binary
+ * file that {@link CachedMnistIterator} maps into memory. Floats are stored in
+ * native byte order so ND4J can use the mapped pages directly.
+ * <p>
+ * Layout: 64 byte header (magic, version, examples, feature size, label size),
+ * all features [examples, 784], all labels [examples, 10]. A file whose header or
+ * length does not match, e.g. one left by a crashed or older writer, is rebuilt.
+ */
+public class MnistCache {
+
+    static final int MAGIC = 0x4D4E4331; // "MNC1"
+    static final int VERSION = 1;
+    private static final int FEATURE_SIZE = 28 * 28;
+    private static final int LABEL_SIZE = 10;
+    static final int HEADER_SIZE = 64;
+    private static Logger log = LoggerFactory.getLogger(MnistCache.class);
+
+    private MnistCache() {
+    }
+
+    public static File defaultFile(boolean train) {
+        return new File(System.getProperty("java.io.tmpdir"), train ? "mnist-train.bin" : "mnist-test.bin");
+    }
+
+    /**
+     * Returns the cache file for the train or test set, creating it on first use.
+     */
+    public static File get(boolean train) throws IOException {
+        File file = defaultFile(train);
+        if (!isValid(file, examples(train))) {
+            write(train, file);
+        }
+        return file;
+    }
+
+    private static int examples(boolean train) {
+        return train ? 60000 : 10000;
+    }
+
+    static boolean isValid(File file, int examples) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                log.warn("Truncated MNIST cache " + file + ", rebuilding it");
+                return false;
+            }
+            boolean valid = header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == examples
+                    && header.getInt(12) == FEATURE_SIZE && header.getInt(16) == LABEL_SIZE
+                    && channel.size() == HEADER_SIZE + 4L * examples * (FEATURE_SIZE + LABEL_SIZE);
+            if (!valid) {
+                log.warn("MNIST cache " + file + " does not match the expected layout, rebuilding it");
+            }
+            return valid;
+        }
+    }
+
+    static void write(boolean train, File file) throws IOException {
+        int examples = examples(train);
+        int featureSize = FEATURE_SIZE;
+        int labelSize = LABEL_SIZE;
+        long start = System.nanoTime();
+
+        // own temp file per writer, processes starting together must not write into each other's
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long labelsStart = HEADER_SIZE + 4L * examples * featureSize;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC).putInt(VERSION).putInt(examples).putInt(featureSize).putInt(labelSize);
+                header.rewind();
+                channel.write(header, 0);
+
+                // unshuffled, normalised to [0, 1]; shuffling is done per epoch by the iterator
+                MnistDataSetIterator mnist = new MnistDataSetIterator(1000, examples, false, train, false, 12345);
+                long row = 0;
+                while (mnist.hasNext()) {
+                    DataSet ds = mnist.next();
+                    int n = ds.numExamples();
+                    ByteBuffer features = ByteBuffer.allocate(4 * n * featureSize).order(ByteOrder.nativeOrder());
+                    features.asFloatBuffer().put(ds.getFeatures().dup('c').data().asFloat(), 0, n * featureSize);
+                    channel.write(features, HEADER_SIZE + 4L * row * featureSize);
+                    ByteBuffer labels = ByteBuffer.allocate(4 * n * labelSize).order(ByteOrder.nativeOrder());
+                    labels.asFloatBuffer().put(ds.getLabels().dup('c').data().asFloat(), 0, n * labelSize);
+                    channel.write(labels, labelsStart + 4L * row * labelSize);
+                    row += n;
+                }
+                if (row != examples) {
+                    throw new IOException("Expected " + examples + " MNIST examples, got " + row);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // gone after the move, left behind if writing failed
+            Files.deleteIfExists(tmp.toPath());
+        }
+        log.info(String.format("Cached %d MNIST %s examples in %s (%.1f s)", examples, train ? "train" : "test",
+                file, (System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,83 @@
+package mnist;
+
+import common.EmbeddingStore;
+import common.ExactIndex;
+import common.IvfIndex;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Similarity search over the 10 dimensional bottleneck of the trained autoencoder: the
+ * train set is encoded into an {@link EmbeddingStore}, the test images are the queries.
+ * Logs queries per second of the exact index (batched and one query at a time) and
+ * queries per second and recall@k of the IVF index for growing numbers of probes.
+ * Usage: MnistEmbeddingSearch [modelFile]
+ */
+public class MnistEmbeddingSearch {
+
+    // output of the 256 -> 10 layer
+    private static final int EMBEDDING_LAYER = 1;
+    private static final int BATCH_SIZE = 1024;
+    private static final int K = 10;
+    private static final int SINGLE_QUERIES = 500;
+    private static Logger log = LoggerFactory.getLogger(MnistEmbeddingSearch.class);
+
+    public static void main(String[] args) throws Exception {
+        File modelFile = new File(args.length > 0 ? args[0] : MnistFeedAutoEncoder.MODEL);
+        MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(modelFile, false);
+
+        EmbeddingStore store = EmbeddingStore.encode(model, EMBEDDING_LAYER, CachedMnistIterator.open(true, BATCH_SIZE, false));
+        EmbeddingStore queries = EmbeddingStore.encode(model, EMBEDDING_LAYER, CachedMnistIterator.open(false, BATCH_SIZE, false));
+        float[][] query = new float[queries.size()][queries.dimension()];
+        for (int q = 0; q < query.length; q++) {
+            queries.get(q, query[q]);
+        }
+
+        ExactIndex exact = new ExactIndex(store);
+        long start = System.nanoTime();
+        int[][] truth = exact.searchBatch(queries.asMatrix(), K);
+        log.info(String.format("exact, batched: %.0f queries/s", query.length / ((System.nanoTime() - start) / 1e9)));
+        start = System.nanoTime();
+        for (int q = 0; q < SINGLE_QUERIES; q++) {
+            exact.search(query[q], K);
+        }
+        log.info(String.format("exact, one at a time: %.0f queries/s", SINGLE_QUERIES / ((System.nanoTime() - start) / 1e9)));
+
+        IvfIndex ivf = new IvfIndex(store, (int) Math.sqrt(store.size()), 1, 42);
+        for (int probes = 1; probes <= 64; probes *= 2) {
+            ivf.setProbes(probes);
+            int[][] found = new int[query.length][];
+            start = System.nanoTime();
+            for (int q = 0; q < query.length; q++) {
+                found[q] = ivf.search(query[q], K);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            log.info(String.format("ivf (%s): %.0f queries/s, recall@%d %.4f",
+                    ivf.report(), query.length / seconds, K, recall(truth, found)));
+        }
+    }
+
+    private static double recall(int[][] truth, int[][] found) {
+        long hits = 0;
+        long total = 0;
+        for (int q = 0; q < truth.length; q++) {
+            Set<Integer> expected = new HashSet<>();
+            for (int id : truth[q]) {
+                expected.add(id);
+            }
+            for (int id : found[q]) {
+                if (expected.contains(id)) {
+                    hits++;
+                }
+            }
+            total += truth[q].length;
+        }
+        return (double) hits / total;
+    }
+}
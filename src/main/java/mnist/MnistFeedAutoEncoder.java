@@ -16,8 +16,10 @@
 
 package mnist;
 
+import common.AsyncCheckpointer;
+import common.MemoryProfile;
+import common.NeuralNetRunner;
 import org.deeplearning4j.api.storage.StatsStorage;
-import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
@@ -29,7 +31,6 @@ import org.deeplearning4j.ui.stats.StatsListener;
 import org.deeplearning4j.ui.storage.FileStatsStorage;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.Adam;
@@ -37,15 +38,14 @@ import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 
 
 public class MnistFeedAutoEncoder {
 
     public static final String MODEL = "C:\\temp\\autoencoder.model";
+    // decoder images and test set reconstructions are written here (-DMnistFeedAutoEncoder.imageDir)
+    private static final File IMAGE_DIR = new File(System.getProperty("MnistFeedAutoEncoder.imageDir", "C:\\temp"));
     private static Logger log = LoggerFactory.getLogger(MnistFeedAutoEncoder.class);
 
     public static void main(String[] args) throws Exception {
@@ -53,18 +53,42 @@ public class MnistFeedAutoEncoder {
     }
 
     protected void run() throws Exception {
-        MultiLayerNetwork model = createNet();
-        model.init();
+        AsyncCheckpointer.Checkpoint checkpoint = AsyncCheckpointer.latest(AsyncCheckpointer.defaultDirectory(), "autoencoder");
+        MultiLayerNetwork model;
+        if (checkpoint != null) {
+            model = checkpoint.model();
+        } else {
+            model = createNet();
+            model.init();
+        }
+        MemoryProfile.forTrainer(MnistFeedAutoEncoder.class, MemoryProfile.TRAINING).apply(model);
 
         //createUiServer(model);
         //print the score with every 1 iteration
         //model.setListeners(new ScoreIterationListener(1));
 
-        DataSetIterator mnistTrain = new MnistDataSetIterator(128, true, 12345);
-        trainNet(model, mnistTrain);
+        NeuralNetRunner runner = NeuralNetRunner.forTrainer(MnistFeedAutoEncoder.class);
+        if (runner.isCompare()) {
+            runner.compareWithSingleWorker(() -> {
+                MultiLayerNetwork m = createNet();
+                m.init();
+                return m;
+            }, () -> identityIterator(CachedMnistIterator.open(true, runner.batchSize(128), true)), 200);
+        }
+
+        CachedMnistIterator mnistTrain = CachedMnistIterator.open(true, runner.batchSize(128), true);
+        identityIterator(mnistTrain);
+        if (checkpoint != null) {
+            mnistTrain.seek(checkpoint.state());
+        }
+        try (AsyncCheckpointer checkpointer = AsyncCheckpointer.forTrainer("autoencoder", mnistTrain::positionState)) {
+            model.setListeners(checkpointer);
+            trainNet(model, mnistTrain, runner);
+            checkpointer.discard();
+        }
         //model = ModelSerializer.restoreMultiLayerNetwork(new File(MODEL));
 
-        DataSetIterator mnistTest = new MnistDataSetIterator(1, false, 12345);
+        DataSetIterator mnistTest = CachedMnistIterator.open(false, 1000, false);
         evaluateModel(model, mnistTest);
     }
 
@@ -73,43 +97,39 @@ public class MnistFeedAutoEncoder {
         System.setProperty("java.specification.version", "1.8");
 
 
-        for (int i = 0; i < 10; i++) {
-            INDArray input = Nd4j.zeros(new int[]{1, 10});
-            input.putScalar(new int[]{0, i}, 10f);
-            INDArray output = model.activateSelectedLayers(2, 3, input);
-            saveImage("Output_" + i, output);
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (ImageExporter decoded = new ImageExporter(IMAGE_DIR, 28, 28, threads)) {
+            // one unit of the 10 dimensional bottleneck active per image
+            INDArray input = Nd4j.eye(10).muli(10f);
+            decoded.export("Output_", 0, model.activateSelectedLayers(2, 3, input));
+        }
+        try (ImageExporter reconstructions = new ImageExporter(new File(IMAGE_DIR, "reconstructions"), 28, 28, threads)) {
+            int first = 0;
+            mnistTest.reset();
+            while (mnistTest.hasNext()) {
+                INDArray features = mnistTest.next().getFeatures();
+                reconstructions.export("Reconstruction_", first, model.output(features, false));
+                first += (int) features.size(0);
+            }
         }
         log.info("****************Evaluate finished********************");
     }
 
-    private void saveImage(String name, INDArray output) {
-        BufferedImage image = new BufferedImage(28, 28, BufferedImage.TYPE_BYTE_GRAY);
-        for (int x = 0; x < 28; x++) {
-            for (int y = 0; y < 28; y++) {
-                image.getRaster().setSample(y, x, 0, 255 * output.getDouble(x * 28 + y));
-            }
-        }
-        try {
-            ImageIO.write(image, "PNG", new File("c:\\temp\\" + name + ".png"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private DataSetIterator identityIterator(DataSetIterator mnist) {
+        // autoencoder: the image is its own label
+        mnist.setPreProcessor(ds -> ds.setLabels(ds.getFeatures()));
+        return mnist;
     }
 
-    private void trainNet(MultiLayerNetwork model, DataSetIterator mnistTrain) throws Exception {
+    private void trainNet(MultiLayerNetwork model, CachedMnistIterator mnistTrain, NeuralNetRunner runner) throws Exception {
         log.info("Train model....");
-        for (int i = 0; i < 10000; i++) {
-            if (!mnistTrain.hasNext())
-                mnistTrain.reset();
-            DataSet ds = mnistTrain.next();
-            DataSet identityDs = new DataSet(ds.getFeatures(), ds.getFeatures());
-            model.fit(identityDs);
-        }
+        // counted in minibatches taken from the data, not in the network's iterations
+        runner.fitIterations(model, mnistTrain, (int) (10000 - mnistTrain.totalPosition()));
         model.save(new File(MODEL));
     }
 
 
-    private MultiLayerNetwork createNet() {
+    static MultiLayerNetwork createNet() {
         //number of rows and columns in the input pictures
         final int numRows = 28;
         final int numColumns = 28;
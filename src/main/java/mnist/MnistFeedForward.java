@@ -16,8 +16,12 @@
 
 package mnist;
 
+import common.MappedModel;
+import common.MemoryProfile;
+import common.NeuralNetRunner;
+import common.ParallelEvaluator;
+import common.TrainingTelemetry;
 import org.deeplearning4j.api.storage.StatsStorage;
-import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -34,13 +38,13 @@ import org.nd4j.linalg.learning.config.Nesterovs;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import common.NeuralNetRunner;
 
 import java.io.File;
 
 
 public class MnistFeedForward  {
 
+    public static final String MODEL = "C:\\temp\\feedforward.model";
     private static Logger log = LoggerFactory.getLogger(MnistFeedForward.class);
 
     public static void main(String[] args) throws Exception {
@@ -50,32 +54,52 @@ public class MnistFeedForward  {
     protected void run() throws Exception {
         MultiLayerNetwork model = createNet();
         model.init();
+        MemoryProfile.forTrainer(MnistFeedForward.class, MemoryProfile.TRAINING).apply(model);
 
-        createUiServer(model);
+        //createUiServer(model);
         //print the score with every 1 iteration
         //model.setListeners(new ScoreIterationListener(1));
 
-        DataSetIterator mnistTrain = new MnistDataSetIterator(128, true, 12345);
-        trainNet(model, mnistTrain);
-
-        DataSetIterator mnistTest = new MnistDataSetIterator(128, false, 12345);
+        NeuralNetRunner runner = NeuralNetRunner.forTrainer(MnistFeedForward.class);
+        if (runner.isCompare()) {
+            runner.compareWithSingleWorker(() -> {
+                MultiLayerNetwork m = createNet();
+                m.init();
+                return m;
+            }, () -> CachedMnistIterator.open(true, runner.batchSize(128), true), 200);
+        }
+
+        DataSetIterator mnistTrain = CachedMnistIterator.open(true, runner.batchSize(128), true);
+        try (TrainingTelemetry telemetry = TrainingTelemetry.forTrainer("feedforward")) {
+            model.addListeners(telemetry);
+            trainNet(model, mnistTrain, runner.withTelemetry(telemetry));
+        }
+
+        DataSetIterator mnistTest = CachedMnistIterator.open(false, 128, false);
         evaluateModel(model, mnistTest);
     }
 
     private void evaluateModel(MultiLayerNetwork model, DataSetIterator mnistTest) {
         log.info("Evaluate model....");
-        Evaluation eval = model.evaluate(mnistTest);
+        Evaluation eval;
+        try (ParallelEvaluator evaluator = new ParallelEvaluator(model, Runtime.getRuntime().availableProcessors())) {
+            eval = evaluator.evaluate(mnistTest, 20, partial ->
+                    log.info(String.format("%d examples evaluated, accuracy so far %.4f",
+                            partial.getConfusionMatrix().getTotal(), partial.accuracy())));
+        }
         log.info(eval.stats());
         log.info("****************Evaluate finished********************");
     }
 
-    private void trainNet(MultiLayerNetwork model, DataSetIterator mnistTrain) throws Exception{
+    private void trainNet(MultiLayerNetwork model, DataSetIterator mnistTrain, NeuralNetRunner runner) throws Exception{
         log.info("Train model....");
-        model.fit(mnistTrain, 3);
+        runner.fit(model, mnistTrain, 3);
+        model.save(new File(MODEL));
+        MappedModel.save(model, new File(MODEL + ".mapped"));
     }
 
 
-    private MultiLayerNetwork createNet() {
+    static MultiLayerNetwork createNet() {
         //number of rows and columns in the input pictures
         final int numRows = 28;
         final int numColumns = 28;
@@ -0,0 +1,54 @@
+package mnist;
+
+import common.MixedPrecisionTrainer;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Convergence of mixed precision against FP32 training: trains the same network from
+ * the same seed once in FP32 and once with {@link MixedPrecisionTrainer}, on the same
+ * minibatches, and logs test accuracy and score after every epoch side by side.
+ * Usage: MnistMixedPrecision [feedforward|cnn [epochs]]
+ */
+public class MnistMixedPrecision {
+
+    private static final int BATCH_SIZE = 128;
+    private static Logger log = LoggerFactory.getLogger(MnistMixedPrecision.class);
+
+    public static void main(String[] args) throws Exception {
+        boolean cnn = args.length > 0 && args[0].equals("cnn");
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        MultiLayerNetwork fp32 = cnn ? MnistCNN.createNet() : MnistFeedForward.createNet();
+        fp32.init();
+        MultiLayerNetwork master = cnn ? MnistCNN.createNet() : MnistFeedForward.createNet();
+        master.init();
+        MixedPrecisionTrainer mixed = new MixedPrecisionTrainer(master, DataType.HALF);
+
+        DataSetIterator train = CachedMnistIterator.open(true, BATCH_SIZE, false);
+        DataSetIterator test = CachedMnistIterator.open(false, BATCH_SIZE, false);
+        long fp32Nanos = 0;
+        long mixedNanos = 0;
+        for (int epoch = 1; epoch <= epochs; epoch++) {
+            long start = System.nanoTime();
+            train.reset();
+            fp32.fit(train);
+            fp32Nanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            mixed.fit(train, 1);
+            mixedNanos += System.nanoTime() - start;
+
+            Evaluation fp32Eval = fp32.evaluate(test);
+            Evaluation mixedEval = master.evaluate(test);
+            log.info(String.format("epoch %d: accuracy fp32 %.4f, mixed %.4f; score fp32 %.4f, mixed %.4f; loss scale %.0f, %d steps skipped",
+                    epoch, fp32Eval.accuracy(), mixedEval.accuracy(), fp32.score(), master.score(),
+                    mixed.getLossScale(), mixed.getSkippedSteps()));
+        }
+        log.info(String.format("training time fp32 %.1f s, mixed %.1f s", fp32Nanos / 1e9, mixedNanos / 1e9));
+    }
+}
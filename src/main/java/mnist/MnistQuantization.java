@@ -0,0 +1,64 @@
+package mnist;
+
+import common.QuantizedModel;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quantizes a saved MNIST classifier to int8 weights, calibrated on a few training
+ * batches, writes it next to the model ("&lt;model&gt;.int8") and reports size, accuracy
+ * drift against the FP32 model and inference throughput of both on the test set.
+ * Usage: MnistQuantization [modelFile [FLOAT|HALF]]
+ */
+public class MnistQuantization {
+
+    private static final int CALIBRATION_BATCHES = 8;
+    private static Logger log = LoggerFactory.getLogger(MnistQuantization.class);
+
+    public static void main(String[] args) throws Exception {
+        File modelFile = new File(args.length > 0 ? args[0] : MnistFeedForward.MODEL);
+        DataType dataType = DataType.valueOf(args.length > 1 ? args[1] : "FLOAT");
+        MultiLayerNetwork fp32 = ModelSerializer.restoreMultiLayerNetwork(modelFile, false);
+
+        DataSetIterator train = CachedMnistIterator.open(true, 128, true);
+        List<INDArray> calibration = new ArrayList<>();
+        for (int i = 0; i < CALIBRATION_BATCHES && train.hasNext(); i++) {
+            calibration.add(train.next().getFeatures().dup());
+        }
+        QuantizedModel quantized = QuantizedModel.calibrate(fp32, calibration);
+        File int8File = new File(modelFile.getPath() + ".int8");
+        quantized.save(int8File);
+        log.info(quantized.sizeReport());
+        log.info(String.format("model file %.1f MB, int8 file %.1f MB", modelFile.length() / 1e6, int8File.length() / 1e6));
+
+        MultiLayerNetwork int8 = QuantizedModel.load(int8File).toNetwork(dataType);
+        DataSetIterator test = CachedMnistIterator.open(false, 128, false);
+        log.info(QuantizedModel.driftReport(fp32, int8, test));
+        log.info(String.format("fp32: %.0f images/s, int8 (%s): %.0f images/s",
+                throughput(fp32, test), dataType, throughput(int8, test)));
+    }
+
+    private static double throughput(MultiLayerNetwork model, DataSetIterator data) {
+        long images = 0;
+        long start = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            // first pass warms up
+            data.reset();
+            images = 0;
+            start = System.nanoTime();
+            while (data.hasNext()) {
+                images += model.output(data.next().getFeatures()).size(0);
+            }
+        }
+        return images / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,90 @@
+package mnist;
+
+import common.InferenceEngine;
+import common.MemoryProfile;
+import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a saved MNIST classifier (MnistFeedForward or MnistCNN model) through the
+ * micro-batching InferenceEngine, with many client threads sending single images.
+ * Usage: MnistServing [modelFile [clients [workers [maxBatchSize [maxDelayMicros]]]]]
+ * The model file may be a ModelSerializer zip or the ".mapped" file saved next to it.
+ */
+public class MnistServing {
+
+    private static final int REQUESTS_PER_CLIENT = 5000;
+    private static Logger log = LoggerFactory.getLogger(MnistServing.class);
+
+    public static void main(String[] args) throws Exception {
+        String modelFile = args.length > 0 ? args[0] : MnistFeedForward.MODEL;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int maxBatchSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        long maxDelayMicros = args.length > 4 ? Long.parseLong(args[4]) : 2000;
+
+        DataSet test = new MnistDataSetIterator(10000, false, 12345).next();
+        INDArray features = test.getFeatures();
+        int[] labels = Nd4j.argMax(test.getLabels(), 1).toIntVector();
+        int examples = labels.length;
+
+        MemoryProfile.INFERENCE.applyGcPolicy();
+        try (InferenceEngine engine = InferenceEngine.restore(new File(modelFile), workers, maxBatchSize, maxDelayMicros)) {
+            AtomicInteger completed = new AtomicInteger();
+            AtomicInteger correct = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            List<Future<?>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < REQUESTS_PER_CLIENT; i++) {
+                        int idx = (client * REQUESTS_PER_CLIENT + i) % examples;
+                        INDArray image = features.get(NDArrayIndex.interval(idx, idx + 1), NDArrayIndex.all());
+                        INDArray output = engine.output(image);
+                        completed.incrementAndGet();
+                        if (Nd4j.argMax(output, 1).getInt(0) == labels[idx]) {
+                            correct.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            pool.shutdown();
+            int failedClients = 0;
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    // the client stops at its first failed request
+                    if (failedClients++ == 0) {
+                        log.error("Client failed", e.getCause());
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int requests = completed.get();
+
+            if (failedClients > 0) {
+                log.error(String.format("%d of %d clients failed, %d of %d requests completed",
+                        failedClients, clients, requests, (long) clients * REQUESTS_PER_CLIENT));
+            }
+            log.info(String.format("%d requests in %.2f s = %.0f requests/s, accuracy %.4f",
+                    requests, seconds, requests / seconds, requests == 0 ? 0 : correct.get() / (double) requests));
+            log.info(engine.report());
+        }
+    }
+}